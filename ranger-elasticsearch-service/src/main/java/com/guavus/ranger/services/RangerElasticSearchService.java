@@ -25,6 +25,7 @@ import org.apache.ranger.plugin.model.RangerServiceDef;
 import org.apache.ranger.plugin.service.RangerBaseService;
 import org.apache.ranger.plugin.service.ResourceLookupContext;
 
+import com.guavus.ranger.services.client.ServiceElasticSearchCatalogCache;
 import com.guavus.ranger.services.client.ServiceElasticSearchClient;
 import com.guavus.ranger.services.client.ServiceElasticSearchConnectionMgr;
 
@@ -47,6 +48,8 @@ public class RangerElasticSearchService extends RangerBaseService{
 		}
 
 		if (configs != null) {
+			// registered here rather than in init, which also serves Test Connection with unsaved configs
+			ServiceElasticSearchCatalogCache.register(serviceName, configs);
 			ServiceElasticSearchClient serviceElasticSearchClient = ServiceElasticSearchConnectionMgr.getElasticSearchClient(serviceName, configs);
 
 			ret = serviceElasticSearchClient.getResources(context);
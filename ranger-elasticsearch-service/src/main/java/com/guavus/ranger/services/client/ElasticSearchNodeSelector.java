@@ -0,0 +1,220 @@
+package com.guavus.ranger.services.client;
+
+import org.apache.http.HttpHost;
+import org.apache.log4j.Logger;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.NodeSelector;
+import org.elasticsearch.client.RestClient;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads lookup requests of one Ranger service over the configured ES nodes.
+ *
+ * RestClient instances are short lived (one per lookup), so the client's own
+ * dead node blacklist is lost between lookups. This selector keeps per node
+ * latency and failure state for the whole process: nodes that failed are
+ * skipped with an exponential backoff, and nodes much slower than the fastest
+ * healthy node are skipped while a faster one is available. A slow node is let
+ * through again at most every probe interval with its latency history cleared,
+ * so one slow sample, e.g. a lookup paying for a TLS handshake, does not keep
+ * it out for good. The remaining nodes are used round robin by the RestClient.
+ *
+ * Node state is kept per scheme, so failed https attempts against an http only
+ * cluster do not take its nodes out of rotation. The scheme that last worked is
+ * remembered too and tried first by later lookups.
+ */
+public class ElasticSearchNodeSelector implements NodeSelector {
+	private static final Logger LOG = Logger.getLogger(ElasticSearchNodeSelector.class);
+
+	private static final long BASE_BACKOFF_MS = TimeUnit.SECONDS.toMillis(5);
+	private static final long MAX_BACKOFF_MS = TimeUnit.MINUTES.toMillis(5);
+	// weight of the newest sample in the latency moving average
+	private static final double LATENCY_EWMA_ALPHA = 0.3;
+	// a node is considered hot when it is this many times slower than the fastest one
+	private static final double SLOW_NODE_FACTOR = 3.0;
+	// below this latency differences are treated as noise
+	private static final double SLOW_NODE_MIN_LATENCY_MS = 50;
+	// how often a node skipped for being slow is given a new chance
+	private static final long SLOW_NODE_PROBE_MS = TimeUnit.SECONDS.toMillis(30);
+
+	private static final ConcurrentHashMap<String, ElasticSearchNodeSelector> SELECTORS = new ConcurrentHashMap<String, ElasticSearchNodeSelector>();
+
+	private final String serviceName;
+	private final ConcurrentHashMap<String, NodeStats> stats = new ConcurrentHashMap<String, NodeStats>();
+	private volatile String workingScheme = null;
+
+	private ElasticSearchNodeSelector(String serviceName) {
+		this.serviceName = serviceName;
+	}
+
+	public static ElasticSearchNodeSelector forService(String serviceName) {
+		ElasticSearchNodeSelector selector = SELECTORS.get(serviceName);
+		if (selector == null) {
+			selector = new ElasticSearchNodeSelector(serviceName);
+			ElasticSearchNodeSelector existing = SELECTORS.putIfAbsent(serviceName, selector);
+			if (existing != null) {
+				selector = existing;
+			}
+		}
+		return selector;
+	}
+
+	/**
+	 * The given schemes, the one that last worked for this service first.
+	 */
+	public List<String> schemes(String[] schemes) {
+		List<String> ret = new ArrayList<String>(Arrays.asList(schemes));
+		String preferred = workingScheme;
+		if (preferred != null && ret.remove(preferred)) {
+			ret.add(0, preferred);
+		}
+		return ret;
+	}
+
+	public void setWorkingScheme(String scheme) {
+		workingScheme = scheme;
+	}
+
+	@Override
+	public void select(Iterable<Node> nodes) {
+		long now = System.currentTimeMillis();
+		int alive = 0;
+		double fastest = Double.MAX_VALUE;
+		Node leastDead = null;
+		long leastDeadUntil = Long.MAX_VALUE;
+
+		for (Node node : nodes) {
+			NodeStats nodeStats = getStats(node.getHost());
+			if (nodeStats.deadUntilMs > now) {
+				if (nodeStats.deadUntilMs < leastDeadUntil) {
+					leastDeadUntil = nodeStats.deadUntilMs;
+					leastDead = node;
+				}
+			} else {
+				alive++;
+				if (nodeStats.samples > 0) {
+					fastest = Math.min(fastest, nodeStats.latencyMs);
+				}
+			}
+		}
+
+		// all nodes are backing off, retry the one that comes back first
+		if (alive == 0) {
+			for (Iterator<Node> it = nodes.iterator(); it.hasNext();) {
+				if (it.next() != leastDead) {
+					it.remove();
+				}
+			}
+			return;
+		}
+
+		double slowThreshold = Math.max(fastest * SLOW_NODE_FACTOR, SLOW_NODE_MIN_LATENCY_MS);
+		for (Iterator<Node> it = nodes.iterator(); it.hasNext();) {
+			NodeStats nodeStats = getStats(it.next().getHost());
+			if (nodeStats.deadUntilMs > now) {
+				it.remove();
+			} else if (fastest != Double.MAX_VALUE && nodeStats.samples > 0 && nodeStats.latencyMs > slowThreshold) {
+				if (!probe(nodeStats, now)) {
+					it.remove();
+				}
+			} else if (nodeStats.lastProbeMs != 0) {
+				// fast again, a later slowdown starts a new probe interval
+				nodeStats.lastProbeMs = 0;
+			}
+		}
+	}
+
+	/**
+	 * Records a successful request against the host and brings it back into rotation.
+	 */
+	public void onSuccess(HttpHost host, long latencyMs) {
+		NodeStats nodeStats = getStats(host);
+		synchronized (nodeStats) {
+			nodeStats.latencyMs = nodeStats.samples == 0 ? latencyMs
+					: LATENCY_EWMA_ALPHA * latencyMs + (1 - LATENCY_EWMA_ALPHA) * nodeStats.latencyMs;
+			nodeStats.samples++;
+			nodeStats.failures = 0;
+			nodeStats.deadUntilMs = 0;
+		}
+	}
+
+	/**
+	 * Records a failed request against the host and takes it out of rotation
+	 * for a backoff period that doubles with every consecutive failure.
+	 */
+	public void onFailure(HttpHost host) {
+		NodeStats nodeStats = getStats(host);
+		synchronized (nodeStats) {
+			nodeStats.failures++;
+			long backoff = BASE_BACKOFF_MS << Math.min(nodeStats.failures - 1, 16);
+			nodeStats.deadUntilMs = System.currentTimeMillis() + Math.min(backoff, MAX_BACKOFF_MS);
+		}
+		LOG.warn("ES node " + host + " of service " + serviceName + " failed " + nodeStats.failures
+				+ " time(s), skipping it until " + nodeStats.deadUntilMs);
+	}
+
+	public RestClient.FailureListener failureListener() {
+		return new RestClient.FailureListener() {
+			@Override
+			public void onFailure(Node node) {
+				ElasticSearchNodeSelector.this.onFailure(node.getHost());
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		return "ElasticSearchNodeSelector [serviceName=" + serviceName + ", stats=" + stats + "]";
+	}
+
+	/**
+	 * Lets a slow node through once it was skipped for a probe interval, clearing
+	 * its latency so the next sample alone decides whether it stays.
+	 */
+	private static boolean probe(NodeStats nodeStats, long now) {
+		synchronized (nodeStats) {
+			if (nodeStats.lastProbeMs == 0) {
+				nodeStats.lastProbeMs = now;
+				return false;
+			}
+			if (now - nodeStats.lastProbeMs < SLOW_NODE_PROBE_MS) {
+				return false;
+			}
+			nodeStats.lastProbeMs = now;
+			nodeStats.samples = 0;
+			return true;
+		}
+	}
+
+	private NodeStats getStats(HttpHost host) {
+		String key = host.toURI();
+		NodeStats nodeStats = stats.get(key);
+		if (nodeStats == null) {
+			nodeStats = new NodeStats();
+			NodeStats existing = stats.putIfAbsent(key, nodeStats);
+			if (existing != null) {
+				nodeStats = existing;
+			}
+		}
+		return nodeStats;
+	}
+
+	private static final class NodeStats {
+		volatile double latencyMs;
+		volatile long samples;
+		volatile int failures;
+		volatile long deadUntilMs;
+		volatile long lastProbeMs;
+
+		@Override
+		public String toString() {
+			return "{latencyMs=" + (long) latencyMs + ", failures=" + failures + ", deadUntilMs=" + deadUntilMs + "}";
+		}
+	}
+}
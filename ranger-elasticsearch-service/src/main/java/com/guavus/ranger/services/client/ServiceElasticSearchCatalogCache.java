@@ -0,0 +1,203 @@
+package com.guavus.ranger.services.client;
+
+import com.google.common.base.Strings;
+import org.apache.log4j.Logger;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the index and alias catalog of every registered ES service in memory
+ * so policy editor lookups do not have to wait for ES.
+ *
+ * All services share one scheduler whose pool size caps how many catalogs are
+ * fetched at the same time. Each service is refreshed on its own interval with
+ * random jitter so services registered together do not refresh together.
+ * Services are registered by their lookups and re-registered when their
+ * configs change. Ranger admin does not tell a service it was deleted, so a
+ * service nobody looked up for es.lookup.prefetch.expiry.hours, a week by
+ * default and far beyond usual idle gaps, stops being refreshed.
+ */
+public class ServiceElasticSearchCatalogCache {
+	private static final Logger LOG = Logger.getLogger(ServiceElasticSearchCatalogCache.class);
+
+	public static final String PREFETCH_INTERVAL_KEY = "es.lookup.prefetch.interval.sec";
+	private static final long DEFAULT_PREFETCH_INTERVAL_SEC = 300;
+	// catalogs are refreshed by at most this many threads across all services
+	private static final int MAX_CONCURRENT_REFRESHES = 2;
+	// each delay is randomly stretched or shrunk by up to this fraction
+	private static final double JITTER_FRACTION = 0.2;
+	private static final long INITIAL_DELAY_MS = TimeUnit.SECONDS.toMillis(10);
+	// a catalog that missed this many refreshes is not served any more
+	private static final int MAX_MISSED_REFRESHES = 3;
+	public static final String PREFETCH_EXPIRY_KEY = "es.lookup.prefetch.expiry.hours";
+	private static final long DEFAULT_PREFETCH_EXPIRY_HOURS = 7 * 24;
+
+	private static final ScheduledExecutorService SCHEDULER = Executors.newScheduledThreadPool(MAX_CONCURRENT_REFRESHES,
+			new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "es-catalog-prefetch-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	private static final Random RANDOM = new Random();
+	private static final ConcurrentHashMap<String, Registration> REGISTRATIONS = new ConcurrentHashMap<String, Registration>();
+
+	private ServiceElasticSearchCatalogCache() {
+	}
+
+	/**
+	 * Registers the service for background catalog refreshes, keeping the
+	 * earlier registration of the same service name if its configs are
+	 * unchanged and replacing it otherwise. An interval of zero disables
+	 * prefetching for the service.
+	 */
+	public static synchronized void register(String serviceName, Map<String, String> configs) {
+		Registration current = REGISTRATIONS.get(serviceName);
+		if (current != null && current.configs.equals(configs)) {
+			current.usedAtMs = System.currentTimeMillis();
+			return;
+		}
+
+		long intervalSec = getLong(serviceName, configs, PREFETCH_INTERVAL_KEY, DEFAULT_PREFETCH_INTERVAL_SEC);
+		long expiryHours = getLong(serviceName, configs, PREFETCH_EXPIRY_KEY, DEFAULT_PREFETCH_EXPIRY_HOURS);
+
+		unregister(serviceName);
+		if (intervalSec <= 0) {
+			// every lookup of such a service gets here
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Catalog prefetch disabled for service " + serviceName);
+			}
+			return;
+		}
+
+		Registration registration = new Registration(serviceName, new HashMap<String, String>(configs),
+				TimeUnit.SECONDS.toMillis(intervalSec), expiryHours > 0 ? TimeUnit.HOURS.toMillis(expiryHours) : Long.MAX_VALUE);
+		REGISTRATIONS.put(serviceName, registration);
+		schedule(registration, jitter(INITIAL_DELAY_MS));
+		LOG.info("Registered service " + serviceName + " for catalog prefetch every " + intervalSec + " sec");
+	}
+
+	public static synchronized void unregister(String serviceName) {
+		Registration registration = REGISTRATIONS.remove(serviceName);
+		if (registration != null) {
+			registration.cancelled = true;
+			ScheduledFuture<?> future = registration.future;
+			if (future != null) {
+				future.cancel(false);
+			}
+		}
+	}
+
+	private static long getLong(String serviceName, Map<String, String> configs, String key, long defaultValue) {
+		String value = configs.get(key);
+		if (!Strings.isNullOrEmpty(value)) {
+			try {
+				return Long.parseLong(value.trim());
+			} catch (NumberFormatException e) {
+				LOG.warn("Invalid " + key + " '" + value + "' for service " + serviceName + ", using " + defaultValue);
+			}
+		}
+		return defaultValue;
+	}
+
+	private static synchronized void unregister(String serviceName, Registration registration) {
+		if (REGISTRATIONS.get(serviceName) == registration) {
+			unregister(serviceName);
+		}
+	}
+
+	/**
+	 * Returns the prefetched catalog of the service, or null if there is none
+	 * or it is too old to be trusted.
+	 */
+	public static SortedSet<String> getCatalog(String serviceName) {
+		Registration registration = REGISTRATIONS.get(serviceName);
+		if (registration == null || registration.catalog == null) {
+			return null;
+		}
+		long age = System.currentTimeMillis() - registration.refreshedAtMs;
+		return age > registration.intervalMs * MAX_MISSED_REFRESHES ? null : registration.catalog;
+	}
+
+	private static void refresh(Registration registration) {
+		if (registration.cancelled) {
+			return;
+		}
+		if (System.currentTimeMillis() - registration.usedAtMs > registration.expiryMs) {
+			LOG.info("Service " + registration.serviceName + " was not looked up for " + registration.expiryMs / 1000
+					+ " sec, dropping its catalog");
+			unregister(registration.serviceName, registration);
+			return;
+		}
+		try {
+			long start = System.currentTimeMillis();
+			ServiceElasticSearchClient client = ServiceElasticSearchConnectionMgr.getElasticSearchClient(
+					registration.serviceName, registration.configs);
+			registration.catalog = Collections.unmodifiableSortedSet(client.fetchIndexNames(null));
+			registration.refreshedAtMs = System.currentTimeMillis();
+
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Prefetched " + registration.catalog.size() + " names for service " + registration.serviceName
+						+ " in " + (registration.refreshedAtMs - start) + " ms");
+			}
+		} catch (Throwable e) {
+			LOG.warn("Could not prefetch catalog for service " + registration.serviceName + " due to " + e);
+		} finally {
+			schedule(registration, jitter(registration.intervalMs));
+		}
+	}
+
+	private static void schedule(final Registration registration, long delayMs) {
+		if (registration.cancelled) {
+			return;
+		}
+		registration.future = SCHEDULER.schedule(new Runnable() {
+			@Override
+			public void run() {
+				refresh(registration);
+			}
+		}, delayMs, TimeUnit.MILLISECONDS);
+	}
+
+	private static long jitter(long delayMs) {
+		double factor;
+		synchronized (RANDOM) {
+			factor = 1 + JITTER_FRACTION * (2 * RANDOM.nextDouble() - 1);
+		}
+		return (long) (delayMs * factor);
+	}
+
+	private static final class Registration {
+		final String serviceName;
+		final Map<String, String> configs;
+		final long intervalMs;
+		final long expiryMs;
+		volatile SortedSet<String> catalog;
+		volatile long refreshedAtMs;
+		volatile long usedAtMs = System.currentTimeMillis();
+		volatile ScheduledFuture<?> future;
+		volatile boolean cancelled;
+
+		Registration(String serviceName, Map<String, String> configs, long intervalMs, long expiryMs) {
+			this.serviceName = serviceName;
+			this.configs = configs;
+			this.intervalMs = intervalMs;
+			this.expiryMs = expiryMs;
+		}
+	}
+}
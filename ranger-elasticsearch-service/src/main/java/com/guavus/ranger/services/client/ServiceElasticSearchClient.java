@@ -3,15 +3,19 @@ package com.guavus.ranger.services.client;
 import com.google.common.base.Strings;
 import com.kerb4j.client.SpnegoClient;
 import org.apache.commons.httpclient.HttpStatus;
-import org.apache.http.Header;
+import org.apache.http.HttpException;
 import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
-import org.apache.http.message.BasicHeader;
 import org.apache.http.ssl.SSLContextBuilder;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
 import org.apache.http.ssl.SSLContexts;
 import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
@@ -25,6 +29,7 @@ import org.elasticsearch.client.RestClientBuilder;
 import javax.net.ssl.SSLContext;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URLEncoder;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -35,10 +40,15 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class ServiceElasticSearchClient {
 	private static final Logger LOG = Logger.getLogger(ServiceElasticSearchClient.class);
@@ -49,8 +59,16 @@ public class ServiceElasticSearchClient {
 
 	String serviceName = null;
 	String esUrl = null;
+	private List<String> esHosts = null;
+	private ElasticSearchNodeSelector nodeSelector = null;
     private SpnegoClient spnegoClient = null;
     private String esSPN = null;
+    private String principal = null;
+    private String keytabPath = null;
+    private int lookupPageSize = DEFAULT_LOOKUP_PAGE_SIZE;
+    private int validateTimeoutMs = DEFAULT_VALIDATE_TIMEOUT_MS;
+    private boolean validateIndexCount = false;
+    private volatile String lastScheme = null;
     private String username = null;
     private String password = null;
     private String truststorePath = null;
@@ -64,23 +82,46 @@ public class ServiceElasticSearchClient {
 	private static final long LOOKUP_TIMEOUT_SEC = 5;
 	private static final String KRB5_DEBUG = "false";
 	private static final String KRB5_CONF = "/etc/krb5.conf";
+	private static final String LOOKUP_PAGE_SIZE_KEY = "es.lookup.page.size";
+	private static final int DEFAULT_LOOKUP_PAGE_SIZE = 100;
+	private static final String VALIDATE_TIMEOUT_KEY = "es.validate.timeout.ms";
+	private static final int DEFAULT_VALIDATE_TIMEOUT_MS = 5000;
+	private static final String VALIDATE_INDEX_COUNT_KEY = "es.validate.index.count";
+	private static final Pattern INDEX_COUNT_PATTERN = Pattern.compile("\"count\"\\s*:\\s*(\\d+)");
+	private static final String[] SCHEMES = { "https", "http" };
+	private static final String[] RESERVED_INDICES = { "_all", "_cluster" };
+	// names ES would reject as an index expression, nothing can match them
+	private static final Pattern INVALID_INDEX_PREFIX = Pattern.compile("^[-_+].*|.*[\\\\/?\"<>| ,#:].*");
 
 	public ServiceElasticSearchClient(String serviceName, Map<String, String> configs) throws Exception {
 		this.serviceName = serviceName;
 		this.esUrl = configs.get("es.url");
+		this.esHosts = parseHosts(esUrl);
+		this.nodeSelector = ElasticSearchNodeSelector.forService(serviceName);
 		this.esSPN = configs.get("es.spn");
 		this.username = configs.get("username");
 		this.password = configs.get("userpass");
 		this.truststorePath = configs.get("truststorepath");
 		this.truststorePassword = configs.get("truststorepass");
         
-		String princName = configs.get("principal");
-        String keytabPath = configs.get("keytab");
-        
-		if ((!Strings.isNullOrEmpty(this.esSPN)) && (!Strings.isNullOrEmpty(princName)) 
+		this.principal = configs.get("principal");
+		this.keytabPath = configs.get("keytab");
+
+		String pageSize = configs.get(LOOKUP_PAGE_SIZE_KEY);
+		if (!Strings.isNullOrEmpty(pageSize)) {
+			this.lookupPageSize = Integer.parseInt(pageSize.trim());
+		}
+
+		String validateTimeout = configs.get(VALIDATE_TIMEOUT_KEY);
+		if (!Strings.isNullOrEmpty(validateTimeout)) {
+			this.validateTimeoutMs = Integer.parseInt(validateTimeout.trim());
+		}
+		this.validateIndexCount = Boolean.parseBoolean(configs.get(VALIDATE_INDEX_COUNT_KEY));
+
+		if ((!Strings.isNullOrEmpty(principal)) 
 		        && (!Strings.isNullOrEmpty(keytabPath))) {
 			try {
-				this.spnegoClient = SpnegoClient.loginWithKeyTab(princName, keytabPath);
+				this.spnegoClient = SpnegoLoginCache.getClient(principal, keytabPath);
 				AccessController.doPrivileged(new PrivilegedAction() {
 					public Object run() {
 						System.setProperty("sun.security.krb5.debug", KRB5_DEBUG);
@@ -98,12 +139,32 @@ public class ServiceElasticSearchClient {
 		String errMsg = errMessage;
 		HashMap<String, Object> responseData = new HashMap<String, Object>();
 		try {
-			getIndexList(null);
+			// a HEAD on the root endpoint proves TLS and authentication without
+			// listing anything, so the cost does not depend on the cluster size
+			long start = System.nanoTime();
+			withRestClient(new RestClientCall<Response>() {
+				@Override
+				public Response call(RestClient lowLevelClient) throws Exception {
+					return performRequest(lowLevelClient, "HEAD", "/");
+				}
+			}, validateTimeoutMs);
+			long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
 			// If it doesn't throw exception, then assume the instance is
 			// reachable
-			String successMsg = "ConnectionTest Successful";
+			String successMsg = "ConnectionTest Successful (scheme: " + lastScheme + ", latency: " + latencyMs + " ms";
+			if (validateIndexCount) {
+				Long indexCount = getIndexCount();
+				if (indexCount != null) {
+					successMsg += ", indices: " + indexCount;
+					responseData.put("indexCount", indexCount);
+				}
+			}
+			successMsg += ")";
 			BaseClient.generateResponseDataMap(true, successMsg,
 					successMsg, null, null, responseData);
+			responseData.put("latencyMs", latencyMs);
+			responseData.put("scheme", lastScheme);
 		} catch (IOException e) {
 			LOG.error("Error connecting to Elastic Search. elasticSearch Client=" + this, e);
 			String failureMsg = "Unable to connect to Elastic Search instance."
@@ -114,64 +175,185 @@ public class ServiceElasticSearchClient {
 		return responseData;
 	}
 
-	private List<String> getIndexList(List<String> ignoreIndexList) throws Exception {
-		List<String> ret = new ArrayList<String>();
-		RestClient lowLevelClient = null;
-        Response response = null;
-        
-		try {
-			LOG.info("Trying https scheme");
-			lowLevelClient = getRestClient("https");
-			response = lowLevelClient.performRequest("GET", "/_cat/indices");
-		} catch (Throwable ie) {
-			LOG.warn("could not connect using https due to " + ie.getCause());
-		    LOG.info("Trying http scheme");
-		    try {
-		        lowLevelClient.close();
-		    } catch (Exception e) {}
-			try {
-			    lowLevelClient = getRestClient("http");
-			    response = lowLevelClient.performRequest("GET", "/_cat/indices");
-			} catch (Throwable ioe) {
-				LOG.warn("could not connect using http due to " +  ioe.getCause());
+	/**
+	 * Returns one page of the index and alias names starting with the prefix.
+	 * Names come from the prefetched catalog when there is one, otherwise the
+	 * prefix is pushed to ES as a wildcard so only matching names are
+	 * transferred; names are sorted and the page continues after the
+	 * continuation token returned with the previous page, if any.
+	 */
+	public ResourcePage getIndexPage(String prefix, String continuationToken, List<String> ignoreIndexList) throws Exception {
+		final SortedSet<String> names = new TreeSet<String>();
+		SortedSet<String> catalog = ServiceElasticSearchCatalogCache.getCatalog(serviceName);
+
+		if (catalog != null && Strings.isNullOrEmpty(prefix)) {
+			names.addAll(catalog);
+		} else if (catalog != null && prefix.indexOf('*') == -1) {
+			names.addAll(catalog.subSet(prefix, prefix + Character.MAX_VALUE));
+		} else {
+			names.addAll(fetchIndexNames(prefix));
+		}
+
+		if (ignoreIndexList == null || ignoreIndexList.isEmpty()) {
+			for (String name : RESERVED_INDICES) {
+				if (Strings.isNullOrEmpty(prefix) || name.startsWith(prefix)) {
+					names.add(name);
+				}
+			}
+		}
+
+		return ResourcePage.of(names, continuationToken, lookupPageSize);
+	}
+
+	/**
+	 * Fetches the index and alias names starting with the prefix from ES. The
+	 * prefix may hold * wildcards. ES also expands the pattern over aliases, so
+	 * _cat/indices lists the backing indices of matching aliases too; those are
+	 * filtered out here.
+	 */
+	SortedSet<String> fetchIndexNames(String prefix) throws Exception {
+		SortedSet<String> names = new TreeSet<String>();
+
+		if (Strings.isNullOrEmpty(prefix) || !INVALID_INDEX_PREFIX.matcher(prefix).matches()) {
+			final String pattern = Strings.isNullOrEmpty(prefix) ? ""
+					: "/" + URLEncoder.encode(prefix, "UTF-8") + "*";
+
+			names.addAll(withRestClient(new RestClientCall<List<String>>() {
+				@Override
+				public List<String> call(RestClient lowLevelClient) throws Exception {
+					List<String> ret = new ArrayList<String>();
+					ret.addAll(getCatColumn(lowLevelClient, "/_cat/indices" + pattern + "?h=index"));
+					ret.addAll(getCatColumn(lowLevelClient, "/_cat/aliases" + pattern + "?h=alias"));
+					return ret;
+				}
+			}));
+
+			if (!Strings.isNullOrEmpty(prefix)) {
+				Pattern matcher = prefixPattern(prefix);
+				for (Iterator<String> it = names.iterator(); it.hasNext();) {
+					if (!matcher.matcher(it.next()).matches()) {
+						it.remove();
+					}
+				}
 			}
 		}
-		finally {
-		    try {
-			    lowLevelClient.close();
-		    } catch (Exception e) {}
+		return names;
+	}
+
+	/**
+	 * Names starting with the prefix, * in the prefix matching any characters.
+	 */
+	static Pattern prefixPattern(String prefix) {
+		StringBuilder regex = new StringBuilder();
+		for (String part : prefix.split("\\*", -1)) {
+			if (regex.length() > 0) {
+				regex.append(".*");
+			}
+			regex.append(Pattern.quote(part));
 		}
-			
+		return Pattern.compile(regex.append(".*").toString(), Pattern.DOTALL);
+	}
+
+	private List<String> getCatColumn(RestClient lowLevelClient, String endpoint) throws Exception {
+		List<String> ret = new ArrayList<String>();
+		Response response = performRequest(lowLevelClient, "GET", endpoint);
+
 		int statusCode = response.getStatusLine().getStatusCode();
-		if(statusCode == HttpStatus.SC_OK) {
-			String responseBody = EntityUtils.toString(response.getEntity());
-			String[] rows = responseBody.split("\n");
-			for(String row : rows) {
-			    ret.add(row.split(" ")[2]);
-			}
-		} else {
-				//TODO throw exception
+		if (statusCode != HttpStatus.SC_OK) {
 			throw new Exception("Status Code => " + statusCode);
-	    }
-		    
-		if (ignoreIndexList == null || ignoreIndexList.isEmpty()) {
-		    ret.add("_all");
-		    ret.add("_cluster");
+		}
+
+		String responseBody = EntityUtils.toString(response.getEntity());
+		for (String row : responseBody.split("\n")) {
+			row = row.trim();
+			if (!row.isEmpty()) {
+				ret.add(row);
+			}
 		}
 		return ret;
 	}
 
 	/**
-	 * @param serviceName
+	 * Returns the number of indices in the cluster, or null if it cannot be read.
+	 */
+	private Long getIndexCount() {
+		try {
+			String body = withRestClient(new RestClientCall<String>() {
+				@Override
+				public String call(RestClient lowLevelClient) throws Exception {
+					Response response = performRequest(lowLevelClient, "GET", "/_cluster/stats?filter_path=indices.count");
+					return EntityUtils.toString(response.getEntity());
+				}
+			}, validateTimeoutMs);
+			Matcher matcher = INDEX_COUNT_PATTERN.matcher(body);
+			return matcher.find() ? Long.valueOf(matcher.group(1)) : null;
+		} catch (Exception e) {
+			LOG.warn("Could not read index count of " + this + " due to " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Runs the call over the scheme that last worked for the service, falling back
+	 * to the other one if that fails; https first until one worked.
+	 */
+	private <T> T withRestClient(RestClientCall<T> call) throws Exception {
+		return withRestClient(call, 0);
+	}
+
+	/**
+	 * Same as {@link #withRestClient(RestClientCall)}. A positive timeoutMs bounds
+	 * connect, socket and retry time of each attempt.
+	 */
+	private <T> T withRestClient(RestClientCall<T> call, int timeoutMs) throws Exception {
+		Exception lastException = null;
+
+		for (String scheme : nodeSelector.schemes(SCHEMES)) {
+			RestClient lowLevelClient = null;
+			try {
+				LOG.info("Trying " + scheme + " scheme");
+				lowLevelClient = getRestClient(scheme, timeoutMs);
+				T ret = call.call(lowLevelClient);
+				lastScheme = scheme;
+				nodeSelector.setWorkingScheme(scheme);
+				return ret;
+			} catch (Exception e) {
+				LOG.warn("could not connect using " + scheme + " due to " + e.getCause());
+				lastException = e;
+			} finally {
+				try {
+					lowLevelClient.close();
+				} catch (Exception e) {}
+			}
+		}
+
+		throw lastException;
+	}
+
+	/**
+	 * Returns the first page of the lookup. Ranger admin's lookup has no way to
+	 * ask for the next page, so at most es.lookup.page.size names are returned,
+	 * the first ones in name order; users narrow the prefix to reach the others.
+	 *
 	 * @param context
 	 * @return
 	 */
 	public List<String> getResources(ResourceLookupContext context) {
+		ResourcePage page = getResources(context, null);
+		return page == null ? null : page.getResources();
+	}
+
+	/**
+	 * @param context
+	 * @param continuationToken token of the previous page, or null for the first page
+	 * @return
+	 */
+	public ResourcePage getResources(ResourceLookupContext context, String continuationToken) {
 
 		String userInput = context.getUserInput();
 		String resource = context.getResourceName();
 		Map<String, List<String>> resourceMap = context.getResources();
-		List<String> resultList = null;
+		ResourcePage resultPage = null;
 		List<String> topicList = null;
 
 		RESOURCE_TYPE lookupResource = RESOURCE_TYPE.INDEX;
@@ -197,40 +379,30 @@ public class ServiceElasticSearchClient {
 
 		if (userInput != null) {
 			try {
-				Callable<List<String>> callableObj = null;
+				Callable<ResourcePage> callableObj = null;
 				final String userInputFinal = userInput;
+				final String continuationTokenFinal = continuationToken;
 
 				final List<String> finalTopicList = topicList;
 
 				if (lookupResource == RESOURCE_TYPE.INDEX) {
 					// get the topic list for given Input
-					callableObj = new Callable<List<String>>() {
+					callableObj = new Callable<ResourcePage>() {
 						@Override
-						public List<String> call() {
-							List<String> retList = new ArrayList<String>();
+						public ResourcePage call() {
 							try {
-								List<String> list = getIndexList(finalTopicList);
-								if (userInputFinal != null
-										&& !userInputFinal.isEmpty()) {
-									for (String value : list) {
-										if (value.startsWith(userInputFinal)) {
-											retList.add(value);
-										}
-									}
-								} else {
-									retList.addAll(list);
-								}
+								return getIndexPage(userInputFinal, continuationTokenFinal, finalTopicList);
 							} catch (Exception ex) {
 								LOG.error("Error getting topic.", ex);
 							}
-							return retList;
+							return ResourcePage.EMPTY;
 						};
 					};
 				}
 				// If we need to do lookup
 				if (callableObj != null) {
 					synchronized (this) {
-						resultList = TimedEventUtil.timedTask(callableObj,
+						resultPage = TimedEventUtil.timedTask(callableObj,
 								LOOKUP_TIMEOUT_SEC, TimeUnit.SECONDS);
 					}
 				}
@@ -239,7 +411,7 @@ public class ServiceElasticSearchClient {
 			}
 		}
 
-		return resultList;
+		return resultPage;
 	}
 
 	@Override
@@ -248,7 +420,74 @@ public class ServiceElasticSearchClient {
 				+ ", esUrl=" + esUrl + "]";
 	}
 
-	private RestClient getRestClient(String scheme) throws Exception {
+	/**
+	 * Parses the comma separated host:port list of the es.url config.
+	 */
+	static List<String> parseHosts(String esUrl) throws Exception {
+		List<String> hosts = new ArrayList<String>();
+		for (String host : esUrl.split(",")) {
+			host = host.trim();
+			if (host.isEmpty()) {
+				continue;
+			}
+			String[] hostAndPort = host.split(":");
+			if (hostAndPort.length != 2 || !hostAndPort[1].matches("\\d+")) {
+				throw new Exception("Invalid ES node '" + host + "' in es.url, expected host:port");
+			}
+			hosts.add(host);
+		}
+		if (hosts.isEmpty()) {
+			throw new Exception("No ES node configured in es.url");
+		}
+		return hosts;
+	}
+
+	private HttpHost[] getHttpHosts(String scheme) {
+		HttpHost[] httpHosts = new HttpHost[esHosts.size()];
+		for (int i = 0; i < httpHosts.length; i++) {
+			String[] hostAndPort = esHosts.get(i).split(":");
+			httpHosts[i] = new HttpHost(hostAndPort[0], Integer.parseInt(hostAndPort[1]), scheme);
+		}
+		return httpHosts;
+	}
+
+	private Response performRequest(RestClient lowLevelClient, String method, String endpoint) throws IOException {
+		long start = System.nanoTime();
+		Response response = lowLevelClient.performRequest(method, endpoint);
+		nodeSelector.onSuccess(response.getHost(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		return response;
+	}
+
+	private RestClientBuilder newRestClientBuilder(String scheme, final int timeoutMs) {
+		RestClientBuilder builder = RestClient.builder(getHttpHosts(scheme))
+				.setNodeSelector(nodeSelector)
+				.setFailureListener(nodeSelector.failureListener());
+
+		if (timeoutMs > 0) {
+			builder.setMaxRetryTimeoutMillis(timeoutMs)
+					.setRequestConfigCallback(new RestClientBuilder.RequestConfigCallback() {
+						@Override
+						public RequestConfig.Builder customizeRequestConfig(RequestConfig.Builder requestConfigBuilder) {
+							return requestConfigBuilder.setConnectTimeout(timeoutMs).setSocketTimeout(timeoutMs);
+						}
+					});
+		}
+		return builder;
+	}
+
+	/**
+	 * Returns the SPN of the ES node: es.spn with _HOST replaced by the node's host
+	 * name, es.spn as is for clusters sharing one SPN, HTTP/<host> if it is not set.
+	 */
+	String spnFor(String host) {
+		String nodeHost = host != null ? host.toLowerCase(Locale.ROOT) : "";
+		if (Strings.isNullOrEmpty(esSPN)) {
+			return "HTTP/" + nodeHost;
+		}
+		return esSPN.replace("_HOST", nodeHost);
+	}
+
+	private RestClient getRestClient(String scheme, int timeoutMs) throws Exception {
 		RestClient lowLevelClient = null;
 		SSLContext sslContext = null;
 		boolean sslEnabled = scheme.equals("https");
@@ -267,18 +506,26 @@ public class ServiceElasticSearchClient {
 
 		if (this.spnegoClient != null) {
 			try {
-				String authHeader = spnegoClient.createAuthroizationHeaderForSPN(this.esSPN);
-				Header[] headers = {
-						new BasicHeader("Authorization", authHeader)
+				// a new token per request, acceptors with a replay cache reject a reused one
+				final HttpRequestInterceptor spnegoInterceptor = new HttpRequestInterceptor() {
+					@Override
+					public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+						HttpHost target = (HttpHost) context.getAttribute(HttpCoreContext.HTTP_TARGET_HOST);
+						String spn = spnFor(target != null ? target.getHostName() : null);
+						try {
+							request.setHeader("Authorization", SpnegoLoginCache.createAuthorizationHeader(principal, keytabPath, spn));
+						} catch (Exception e) {
+							throw new IOException("Could not create SPNEGO token for " + spn, e);
+						}
+					}
 				};
 
 				SSLContext finalSslContext = sslContext;
-				lowLevelClient = RestClient.builder(
-						new HttpHost(esUrl.split(":")[0], Integer.parseInt(esUrl.split(":")[1]), scheme))
-						.setDefaultHeaders(headers)
+				lowLevelClient = newRestClientBuilder(scheme, timeoutMs)
 						.setHttpClientConfigCallback(new RestClientBuilder.HttpClientConfigCallback() {
 							@Override
 							public HttpAsyncClientBuilder customizeHttpClient(HttpAsyncClientBuilder httpClientBuilder) {
+								httpClientBuilder.addInterceptorLast(spnegoInterceptor);
 								if (sslEnabled) {
 									return httpClientBuilder.setSSLContext(finalSslContext);
 								} else {
@@ -301,8 +548,7 @@ public class ServiceElasticSearchClient {
 						new UsernamePasswordCredentials(username, password));
 
 				SSLContext finalSslContext1 = sslContext;
-				lowLevelClient = RestClient.builder(
-						new HttpHost(esUrl.split(":")[0], Integer.parseInt(esUrl.split(":")[1]), scheme))
+				lowLevelClient = newRestClientBuilder(scheme, timeoutMs)
 						.setHttpClientConfigCallback(new RestClientBuilder.HttpClientConfigCallback() {
 							@Override
 							public HttpAsyncClientBuilder customizeHttpClient(HttpAsyncClientBuilder httpClientBuilder) {
@@ -323,6 +569,47 @@ public class ServiceElasticSearchClient {
 		return lowLevelClient;
 	}
 
+	/**
+	 * A sorted, size capped slice of lookup results. The continuation token is
+	 * null on the last page.
+	 */
+	public static class ResourcePage {
+		static final ResourcePage EMPTY = new ResourcePage(new ArrayList<String>(), null);
+
+		private final List<String> resources;
+		private final String continuationToken;
+
+		ResourcePage(List<String> resources, String continuationToken) {
+			this.resources = resources;
+			this.continuationToken = continuationToken;
+		}
+
+		static ResourcePage of(SortedSet<String> names, String continuationToken, int pageSize) {
+			List<String> page = new ArrayList<String>();
+			SortedSet<String> remaining = continuationToken == null ? names : names.tailSet(continuationToken + "\0");
+
+			for (String name : remaining) {
+				if (page.size() == pageSize) {
+					return new ResourcePage(page, page.get(page.size() - 1));
+				}
+				page.add(name);
+			}
+			return new ResourcePage(page, null);
+		}
+
+		public List<String> getResources() {
+			return resources;
+		}
+
+		public String getContinuationToken() {
+			return continuationToken;
+		}
+	}
+
+	private interface RestClientCall<T> {
+		T call(RestClient lowLevelClient) throws Exception;
+	}
+
 	public static void main (String args[]) throws Exception {
 		Map<String, String> configs = new HashMap<String,String>();
 		configs.put("es.url", args[0]);
@@ -16,6 +16,8 @@ public class ServiceElasticSearchConnectionMgr {
 	                + serviceName + ". URL information not provided.");
 	    }
 
+	    ServiceElasticSearchClient.parseHosts(esUrl);
+
 	    if ((!Strings.isNullOrEmpty(configs.get("truststorepath"))
 				&& Strings.isNullOrEmpty(configs.get("truststorepass")))
 				|| (Strings.isNullOrEmpty(configs.get("truststorepath"))
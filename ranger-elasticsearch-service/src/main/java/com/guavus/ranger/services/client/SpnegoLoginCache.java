@@ -0,0 +1,120 @@
+package com.guavus.ranger.services.client;
+
+import com.kerb4j.client.SpnegoClient;
+import org.apache.log4j.Logger;
+
+import javax.security.auth.Subject;
+import javax.security.auth.kerberos.KerberosTicket;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide cache of the Kerberos keytab logins used by
+ * {@link ServiceElasticSearchClient}.
+ *
+ * A new lookup client is created for every lookup, so without this cache every
+ * lookup paid for a keytab login. Logins are keyed by principal and keytab and
+ * renewed once most of the TGT lifetime has elapsed. Service tickets obtained
+ * through a login stay in its subject, so a new SPNEGO token per request does
+ * not go back to the KDC; tokens themselves are never reused, as acceptors with
+ * a replay cache reject an authenticator they have already seen.
+ */
+public class SpnegoLoginCache {
+	private static final Logger LOG = Logger.getLogger(SpnegoLoginCache.class);
+
+	// used when the ticket lifetime cannot be read from the login subject
+	private static final long DEFAULT_TICKET_LIFETIME_MS = TimeUnit.HOURS.toMillis(1);
+	// renew the login once this fraction of the ticket lifetime has elapsed
+	private static final double RENEW_LIFETIME_FRACTION = 0.8;
+	// never log in again more often than this, whatever the ticket says
+	private static final long MIN_LOGIN_REUSE_MS = TimeUnit.MINUTES.toMillis(1);
+
+	private static final ConcurrentHashMap<String, Login> LOGINS = new ConcurrentHashMap<String, Login>();
+
+	private SpnegoLoginCache() {
+	}
+
+	/**
+	 * Returns a logged in client for the principal and keytab, logging in again
+	 * if there is no login yet or the cached one is close to expiry.
+	 */
+	public static SpnegoClient getClient(String principal, String keytabPath) throws Exception {
+		return getLogin(principal, keytabPath).client;
+	}
+
+	/**
+	 * Returns a new Authorization header value for the SPN, carrying a SPNEGO
+	 * token that has not been sent before.
+	 */
+	public static String createAuthorizationHeader(String principal, String keytabPath, String spn) throws Exception {
+		return getLogin(principal, keytabPath).client.createAuthroizationHeaderForSPN(spn);
+	}
+
+	private static Login getLogin(String principal, String keytabPath) throws Exception {
+		String key = loginKey(principal, keytabPath);
+		Login login = LOGINS.get(key);
+
+		if (login == null || login.needsRenewal(System.currentTimeMillis())) {
+			synchronized (SpnegoLoginCache.class) {
+				login = LOGINS.get(key);
+				if (login == null || login.needsRenewal(System.currentTimeMillis())) {
+					LOG.info("Logging in with keytab " + keytabPath + " as " + principal);
+					login = login(principal, keytabPath);
+					LOGINS.put(key, login);
+				}
+			}
+		}
+		return login;
+	}
+
+	private static Login login(String principal, String keytabPath) throws Exception {
+		long loginTime = System.currentTimeMillis();
+		SpnegoClient client = SpnegoClient.loginWithKeyTab(principal, keytabPath);
+		long lifetimeMs = DEFAULT_TICKET_LIFETIME_MS;
+		long startMs = loginTime;
+
+		try {
+			KerberosTicket tgt = findTgt(client.getSubject());
+			if (tgt != null && tgt.getStartTime() != null && tgt.getEndTime() != null) {
+				startMs = tgt.getStartTime().getTime();
+				lifetimeMs = tgt.getEndTime().getTime() - startMs;
+			}
+		} catch (Exception e) {
+			LOG.warn("Could not read ticket lifetime for " + principal + ", assuming "
+					+ DEFAULT_TICKET_LIFETIME_MS + " ms: " + e.getMessage());
+		}
+
+		long renewAtMs = startMs + (long) (lifetimeMs * RENEW_LIFETIME_FRACTION);
+		return new Login(client, Math.max(renewAtMs, loginTime + MIN_LOGIN_REUSE_MS));
+	}
+
+	private static KerberosTicket findTgt(Subject subject) {
+		if (subject == null) {
+			return null;
+		}
+		for (KerberosTicket ticket : subject.getPrivateCredentials(KerberosTicket.class)) {
+			if (ticket.getServer() != null && ticket.getServer().getName().startsWith("krbtgt/")) {
+				return ticket;
+			}
+		}
+		return null;
+	}
+
+	private static String loginKey(String principal, String keytabPath) {
+		return principal + "|" + keytabPath;
+	}
+
+	private static final class Login {
+		final SpnegoClient client;
+		final long renewAtMs;
+
+		Login(SpnegoClient client, long renewAtMs) {
+			this.client = client;
+			this.renewAtMs = renewAtMs;
+		}
+
+		boolean needsRenewal(long now) {
+			return now >= renewAtMs;
+		}
+	}
+}
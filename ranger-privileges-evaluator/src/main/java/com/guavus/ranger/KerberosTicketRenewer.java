@@ -0,0 +1,159 @@
+/*
+ * Copyright 2020 ThalesGroup
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.guavus.ranger;
+
+import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.security.auth.Subject;
+import javax.security.auth.kerberos.KerberosTicket;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renews the Kerberos login of the evaluator UGI from a background thread, ahead of
+ * the point where Hadoop would otherwise relogin inline in a Ranger admin call.
+ *
+ * Each run calls checkTGTAndReloginFromKeytab(), which logs in again once 80% of the
+ * TGT lifetime has passed, and schedules the next run right after that point.
+ */
+public class KerberosTicketRenewer {
+
+    protected final Logger log = LogManager.getLogger(this.getClass());
+
+    // Hadoop relogins once this fraction of the ticket lifetime has passed
+    private static final double RELOGIN_WINDOW = 0.8;
+    private static final long MIN_CHECK_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final long DEFAULT_CHECK_INTERVAL_MS = TimeUnit.HOURS.toMillis(1);
+
+    private final UserGroupInformation ugi;
+    private final ScheduledExecutorService scheduler;
+
+    private volatile long ticketStartTimeMs = -1;
+    private volatile long ticketEndTimeMs = -1;
+    private volatile long lastCheckTimeMs = -1;
+    private volatile long failures = 0;
+
+    public KerberosTicketRenewer(UserGroupInformation ugi) {
+        this.ugi = ugi;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ranger-tgt-renewer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        readTicket();
+        schedule(nextCheckDelayMs());
+        log.info("Kerberos ticket renewal started for " + ugi.getUserName() + ", ticket valid until " + ticketEndTimeMs);
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Remaining lifetime of the current TGT, negative if it is unknown.
+     */
+    public long getTicketRemainingMs() {
+        return ticketEndTimeMs < 0 ? -1 : ticketEndTimeMs - System.currentTimeMillis();
+    }
+
+    public long getTicketEndTimeMs() {
+        return ticketEndTimeMs;
+    }
+
+    public long getLastCheckTimeMs() {
+        return lastCheckTimeMs;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+
+    private void schedule(long delayMs) {
+        scheduler.schedule(this::renew, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void renew() {
+        long delayMs = MIN_CHECK_INTERVAL_MS;
+        try {
+            AccessController.doPrivileged(new PrivilegedAction<Void>() {
+                public Void run() {
+                    try {
+                        ugi.checkTGTAndReloginFromKeytab();
+                    } catch (Exception e) {
+                        throw new RangerPrivilegesEvaluatorException("Kerberos relogin failed: " + e.getMessage(), e);
+                    }
+                    readTicket();
+                    return null;
+                }
+            });
+            lastCheckTimeMs = System.currentTimeMillis();
+            delayMs = nextCheckDelayMs();
+
+            if (log.isDebugEnabled()) {
+                log.debug("Checked TGT of " + ugi.getUserName() + ", remaining lifetime " + getTicketRemainingMs() + " ms");
+            }
+        } catch (Throwable t) {
+            failures++;
+            log.warn("Kerberos ticket renewal failed for " + ugi.getUserName() + ", retrying in " + delayMs + " ms, remaining lifetime "
+                    + getTicketRemainingMs() + " ms", t);
+        } finally {
+            if (!scheduler.isShutdown()) {
+                schedule(delayMs);
+            }
+        }
+    }
+
+    private long nextCheckDelayMs() {
+        if (ticketEndTimeMs < 0) {
+            return DEFAULT_CHECK_INTERVAL_MS;
+        }
+        long reloginAt = ticketStartTimeMs + (long) ((ticketEndTimeMs - ticketStartTimeMs) * RELOGIN_WINDOW);
+        return Math.max(MIN_CHECK_INTERVAL_MS, reloginAt - System.currentTimeMillis());
+    }
+
+    private void readTicket() {
+        KerberosTicket tgt = ugi.doAs(new PrivilegedAction<KerberosTicket>() {
+            public KerberosTicket run() {
+                Subject subject = Subject.getSubject(AccessController.getContext());
+                if (subject == null) {
+                    return null;
+                }
+                for (KerberosTicket ticket : subject.getPrivateCredentials(KerberosTicket.class)) {
+                    if (ticket.getServer().getName().startsWith("krbtgt/")) {
+                        return ticket;
+                    }
+                }
+                return null;
+            }
+        });
+
+        if (tgt != null) {
+            ticketStartTimeMs = (tgt.getStartTime() != null ? tgt.getStartTime() : tgt.getAuthTime()).getTime();
+            ticketEndTimeMs = tgt.getEndTime().getTime();
+        } else {
+            ticketStartTimeMs = -1;
+            ticketEndTimeMs = -1;
+        }
+    }
+}
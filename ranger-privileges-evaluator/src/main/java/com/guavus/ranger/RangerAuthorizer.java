@@ -0,0 +1,223 @@
+/*
+ * Copyright 2020 ThalesGroup
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.guavus.ranger;
+
+import com.amazon.opendistroforelasticsearch.security.user.User;
+import com.google.common.base.Strings;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.ranger.plugin.policyengine.RangerAccessRequestImpl;
+import org.apache.ranger.plugin.policyengine.RangerAccessResourceImpl;
+import org.apache.ranger.plugin.policyengine.RangerAccessResult;
+import org.apache.ranger.plugin.service.RangerBasePlugin;
+import org.elasticsearch.common.transport.TransportAddress;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Decides whether a user may perform an access type on a set of resolved indices,
+ * given an initialized Ranger plugin.
+ *
+ * Each index is checked on its own; when some index is denied, access is still granted
+ * if the user holds the cluster level access type on _all. _all and _cluster themselves
+ * have no such fallback. With the index pruner, large index sets containing an index
+ * no policy grants on go straight to the _all check, which is the decision the per-index
+ * checks would come to, without auditing each denied index. Checks the permission matrix
+ * fully allows are not evaluated at all, and concurrent identical index checks can be
+ * coalesced into one. Users the principal filter finds in no allow policy are denied
+ * with a single audited denial.
+ */
+public class RangerAuthorizer {
+
+    protected final Logger log = LogManager.getLogger(this.getClass());
+
+    private final RangerBasePlugin rangerPlugin;
+    private final String clusterName;
+    private final RangerDecisionCache decisionCache;
+    private final RangerShadowEvaluator shadowEvaluator;
+    private final RangerIndexPruner indexPruner;
+    private final int pruningMinIndices;
+    private final RangerPermissionMatrix permissionMatrix;
+    private final RangerCheckCoalescer checkCoalescer;
+    private final RangerPrincipalFilter principalFilter;
+
+    /**
+     * @param decisionCacheMaxEntries size of the decision cache, 0 to disable it
+     * @param shadowSampleRate fraction of checks replayed by the shadow evaluator, 0 to disable it
+     * @param pruningMinIndices checks on at least this many indices go through the index pruner, 0 to disable it
+     * @param permissionMatrixMaxRows rows of the permission matrix, 0 to disable it
+     * @param coalescing whether concurrent identical index checks are coalesced
+     * @param principalFiltering whether users without any grant are denied without evaluating their checks
+     */
+    public RangerAuthorizer(RangerBasePlugin rangerPlugin, String clusterName, int decisionCacheMaxEntries, double shadowSampleRate,
+                            int pruningMinIndices, int permissionMatrixMaxRows, boolean coalescing, boolean principalFiltering) {
+        this.rangerPlugin = rangerPlugin;
+        this.clusterName = clusterName;
+        this.decisionCache = decisionCacheMaxEntries > 0 ? new RangerDecisionCache(rangerPlugin, decisionCacheMaxEntries) : null;
+        this.shadowEvaluator = shadowSampleRate > 0 ? new RangerShadowEvaluator(shadowSampleRate,
+                (u, c, a, i, l) -> evaluate(u, c, a, i, l, true), rangerPlugin::getCurrentRangerAuthContext) : null;
+        this.indexPruner = pruningMinIndices > 0 && rangerPlugin instanceof RangerElasticsearchPlugin
+                ? new RangerIndexPruner((RangerElasticsearchPlugin) rangerPlugin) : null;
+        this.pruningMinIndices = pruningMinIndices;
+        this.permissionMatrix = permissionMatrixMaxRows > 0 && rangerPlugin instanceof RangerElasticsearchPlugin
+                ? new RangerPermissionMatrix((RangerElasticsearchPlugin) rangerPlugin, clusterName, permissionMatrixMaxRows) : null;
+        this.checkCoalescer = coalescing ? new RangerCheckCoalescer(rangerPlugin) : null;
+        this.principalFilter = principalFiltering && rangerPlugin instanceof RangerElasticsearchPlugin
+                ? new RangerPrincipalFilter((RangerElasticsearchPlugin) rangerPlugin) : null;
+    }
+
+    public boolean isAllowed(final User user, TransportAddress caller, String accessType, Set<String> indices, String clusterLevelAccessType) {
+        RangerShadowEvaluator shadow = shadowEvaluator;
+        if (shadow == null || !shadow.sample()) {
+            return evaluate(user, caller, accessType, indices, clusterLevelAccessType, false);
+        }
+
+        long start = System.nanoTime();
+        boolean allowed = evaluate(user, caller, accessType, indices, clusterLevelAccessType, false);
+        shadow.compare(user, caller, accessType, indices, clusterLevelAccessType, allowed, System.nanoTime() - start);
+        return allowed;
+    }
+
+    public RangerDecisionCache getDecisionCache() {
+        return decisionCache;
+    }
+
+    public RangerShadowEvaluator getShadowEvaluator() {
+        return shadowEvaluator;
+    }
+
+    public RangerPermissionMatrix getPermissionMatrix() {
+        return permissionMatrix;
+    }
+
+    public RangerCheckCoalescer getCheckCoalescer() {
+        return checkCoalescer;
+    }
+
+    public RangerPrincipalFilter getPrincipalFilter() {
+        return principalFilter;
+    }
+
+    public void stop() {
+        if (shadowEvaluator != null) {
+            shadowEvaluator.stop();
+        }
+        if (permissionMatrix != null) {
+            permissionMatrix.stop();
+        }
+    }
+
+    /**
+     * The reference evaluation checks every index against the policy engine directly,
+     * bypassing the decision cache, and is not audited.
+     */
+    private boolean evaluate(final User user, TransportAddress caller, String accessType, Set<String> indices,
+                             String clusterLevelAccessType, boolean reference) {
+        boolean checkClusterLevelPermission = false;
+        Date eventTime = new Date();
+        String ipAddress = caller.address().getHostString();
+        RangerAccessRequestImpl rangerRequest = new RangerAccessRequestImpl();
+        rangerRequest.setUser(user.getName());
+
+        rangerRequest.setClientIPAddress(ipAddress);
+        rangerRequest.setAccessTime(eventTime);
+        RangerAccessResourceImpl rangerResource = new RangerAccessResourceImpl();
+        rangerRequest.setResource(rangerResource);
+        if (!Strings.isNullOrEmpty(clusterName)) {
+            rangerRequest.setClusterName(clusterName);
+        }
+        rangerRequest.setAccessType(accessType);
+        rangerRequest.setAction(accessType);
+        rangerRequest.setUserGroups(user.getRoles());
+
+        if (!reference && principalFilter != null && principalFilter.isUngranted(user.getName(), user.getRoles())) {
+            log.debug("No policy grants anything to user: " + user.getName() + " or its groups, denying");
+            // audited as the check evaluate() would have denied last
+            String deniedIndex = indices.contains("_cluster") ? "_cluster" : "_all";
+            rangerResource.setValue("index", deniedIndex);
+            if (!indices.contains(deniedIndex)) {
+                rangerRequest.setAccessType(clusterLevelAccessType);
+            }
+            principalFilter.auditDenial(rangerRequest);
+            return false;
+        }
+
+        if (!reference && permissionMatrix != null && permissionMatrix.isAllowed(rangerRequest, rangerResource, indices)) {
+            return true;
+        }
+
+        if (!reference && isPrunable(indices)) {
+            String deniedIndex = indexPruner.findDeniedIndex(user.getName(), user.getRoles(), accessType, indices);
+            if (deniedIndex != null) {
+                log.debug("No policy grants " + accessType + " on " + deniedIndex + " to user: " + user.getName() + ", skipping index checks");
+                return isAllowedOnAll(rangerRequest, rangerResource, clusterLevelAccessType, reference);
+            }
+        }
+
+        for (Iterator<String> it = indices.iterator(); it.hasNext();) {
+            String index = it.next();
+            log.debug("Checking for index: " + index + ", for user: " + user.getName() + " and accessType: " + accessType);
+            rangerResource.setValue("index", index);
+            RangerAccessResult result = isAccessAllowed(rangerRequest, reference);
+            if (result == null || !(result.getIsAllowed())) {
+                if ((!index.equals("_all")) && (!index.equals("_cluster"))) {
+                    checkClusterLevelPermission = true;
+                } else {
+                    log.debug("Index/Cluster Permission denied");
+                    return false;
+                }
+            }
+        }
+        if (checkClusterLevelPermission) {
+            return isAllowedOnAll(rangerRequest, rangerResource, clusterLevelAccessType, reference);
+        }
+        return true;
+    }
+
+    private boolean isAllowedOnAll(RangerAccessRequestImpl rangerRequest, RangerAccessResourceImpl rangerResource,
+                                   String clusterLevelAccessType, boolean reference) {
+        log.debug("Checking all level permissions (_all), accessType: " + clusterLevelAccessType);
+        rangerResource.setValue("index", "_all");
+        rangerRequest.setAccessType(clusterLevelAccessType);
+        RangerAccessResult result = isAccessAllowed(rangerRequest, reference);
+        if (result == null || !(result.getIsAllowed())) {
+            log.debug("All level Permission denied");
+            return false;
+        }
+        return true;
+    }
+
+    // _all and _cluster are denied without the _all fallback, so they are always checked
+    private boolean isPrunable(Set<String> indices) {
+        return indexPruner != null && indices.size() >= pruningMinIndices
+                && !indices.contains("_all") && !indices.contains("_cluster");
+    }
+
+    private RangerAccessResult isAccessAllowed(RangerAccessRequestImpl rangerRequest, boolean reference) {
+        if (reference) {
+            return rangerPlugin.isAccessAllowed(rangerRequest, null);
+        }
+        RangerCheckCoalescer coalescer = checkCoalescer;
+        return coalescer != null ? coalescer.isAccessAllowed(rangerRequest, this::check) : check(rangerRequest);
+    }
+
+    private RangerAccessResult check(RangerAccessRequestImpl rangerRequest) {
+        RangerDecisionCache cache = decisionCache;
+        return cache != null ? cache.isAccessAllowed(rangerRequest) : rangerPlugin.isAccessAllowed(rangerRequest);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2020 ThalesGroup
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.guavus.ranger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.ranger.plugin.model.RangerPolicy;
+import org.apache.ranger.plugin.policyengine.RangerAccessRequestImpl;
+import org.apache.ranger.plugin.policyengine.RangerAccessResult;
+import org.apache.ranger.plugin.policyengine.RangerAccessResultProcessor;
+import org.apache.ranger.plugin.service.RangerBasePlugin;
+
+import java.util.Collections;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Coalesces concurrent identical single index checks, so a burst of threads asking the
+ * same question, like the panels of a dashboard refresh, costs one policy evaluation.
+ *
+ * The first thread checking a (user, groups, client address, access type, index) runs the
+ * check, the threads asking the same while it runs wait for its result. Nothing is kept
+ * once the check completes. Waiters still pass their own result to the plugin's result
+ * processor, so audit is unchanged; if the first check fails, each waiter runs its own.
+ */
+public class RangerCheckCoalescer {
+
+    protected final Logger log = LogManager.getLogger(this.getClass());
+
+    private final RangerBasePlugin rangerPlugin;
+    private final ConcurrentHashMap<CheckKey, CompletableFuture<RangerAccessResult>> inFlight =
+            new ConcurrentHashMap<CheckKey, CompletableFuture<RangerAccessResult>>();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    public RangerCheckCoalescer(RangerBasePlugin rangerPlugin) {
+        this.rangerPlugin = rangerPlugin;
+    }
+
+    /**
+     * The result of the check, run by this thread unless the same check is already running.
+     */
+    public RangerAccessResult isAccessAllowed(RangerAccessRequestImpl request, Function<RangerAccessRequestImpl, RangerAccessResult> check) {
+        CheckKey key = new CheckKey(request);
+        CompletableFuture<RangerAccessResult> mine = new CompletableFuture<RangerAccessResult>();
+        CompletableFuture<RangerAccessResult> running = inFlight.putIfAbsent(key, mine);
+
+        if (running != null) {
+            RangerAccessResult result;
+            try {
+                result = running.join();
+            } catch (RuntimeException e) {
+                log.debug("Coalesced Ranger check failed, running it again", e);
+                return check.apply(request);
+            }
+            coalesced.incrementAndGet();
+            return result != null ? replay(request, result) : null;
+        }
+
+        try {
+            RangerAccessResult result = check.apply(request);
+            mine.complete(result);
+            return result;
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    private RangerAccessResult replay(RangerAccessRequestImpl request, RangerAccessResult decision) {
+        RangerAccessResult result = new RangerAccessResult(RangerPolicy.POLICY_TYPE_ACCESS, rangerPlugin.getServiceName(),
+                rangerPlugin.getServiceDef(), request);
+        result.setIsAccessDetermined(decision.getIsAccessDetermined());
+        result.setIsAllowed(decision.getIsAllowed());
+        result.setIsAudited(decision.getIsAudited());
+        result.setPolicyId(decision.getPolicyId());
+
+        RangerAccessResultProcessor resultProcessor = rangerPlugin.getResultProcessor();
+        if (resultProcessor != null) {
+            resultProcessor.processResult(result);
+        }
+
+        return result;
+    }
+
+    // the key only lives while the check of its request runs, so the request's group set is not copied
+    private static final class CheckKey {
+        final String user;
+        final Set<String> groups;
+        final String clientIPAddress;
+        final String accessType;
+        final Object index;
+        final int hash;
+
+        CheckKey(RangerAccessRequestImpl request) {
+            this.user = request.getUser();
+            this.groups = request.getUserGroups() != null ? request.getUserGroups() : Collections.<String>emptySet();
+            this.clientIPAddress = request.getClientIPAddress();
+            this.accessType = request.getAccessType();
+            this.index = request.getResource().getValue("index");
+            this.hash = Objects.hash(user, groups, clientIPAddress, accessType, index);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CheckKey)) {
+                return false;
+            }
+            CheckKey other = (CheckKey) o;
+            return hash == other.hash && Objects.equals(user, other.user) && Objects.equals(accessType, other.accessType)
+                    && Objects.equals(index, other.index) && Objects.equals(clientIPAddress, other.clientIPAddress)
+                    && groups.equals(other.groups);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
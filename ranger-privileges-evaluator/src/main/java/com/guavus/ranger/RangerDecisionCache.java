@@ -0,0 +1,307 @@
+/*
+ * Copyright 2020 ThalesGroup
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.guavus.ranger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.ranger.plugin.contextenricher.RangerTagForEval;
+import org.apache.ranger.plugin.model.RangerPolicy;
+import org.apache.ranger.plugin.policyengine.RangerAccessRequest;
+import org.apache.ranger.plugin.policyengine.RangerAccessRequestImpl;
+import org.apache.ranger.plugin.policyengine.RangerAccessResourceImpl;
+import org.apache.ranger.plugin.policyengine.RangerAccessResult;
+import org.apache.ranger.plugin.policyengine.RangerAccessResultProcessor;
+import org.apache.ranger.plugin.policyengine.RangerPolicyEngine;
+import org.apache.ranger.plugin.service.RangerAuthContext;
+import org.apache.ranger.plugin.service.RangerAuthContextListener;
+import org.apache.ranger.plugin.service.RangerBasePlugin;
+import org.apache.ranger.plugin.util.RangerAccessRequestUtil;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches Ranger decisions per index signature, so indices carrying the same tags
+ * and matched by the same policies cost one policy evaluation per user and access type.
+ *
+ * The signature of an index is the set of its tag types plus the ids of all tag and
+ * resource policies matching it. Signatures are computed once per auth context and
+ * dropped whenever Ranger reports a policy or tag change, and decisions are kept per
+ * (user, groups, access type, signature). Indices matched by a policy with conditions
+ * or validity schedules, or carrying tags with validity periods, are always evaluated
+ * by the engine since their decision depends on more than the signature.
+ *
+ * Cached decisions are still passed to the plugin's result processor, so audit is unchanged.
+ */
+public class RangerDecisionCache implements RangerAuthContextListener {
+
+    protected final Logger log = LogManager.getLogger(this.getClass());
+
+    private static final Signature UNCACHEABLE = new Signature(Collections.emptySet(), new long[0]);
+
+    private final RangerBasePlugin rangerPlugin;
+    private final int maxEntries;
+    private volatile Generation generation = new Generation(null);
+
+    public RangerDecisionCache(RangerBasePlugin rangerPlugin, int maxEntries) {
+        this.rangerPlugin = rangerPlugin;
+        this.maxEntries = maxEntries;
+        rangerPlugin.registerAuthContextEventListener(this);
+    }
+
+    @Override
+    public void contextChanged() {
+        // the next lookup starts a generation for the new context
+        generation = new Generation(null);
+    }
+
+    /**
+     * Same contract as {@link RangerBasePlugin#isAccessAllowed(RangerAccessRequest)} for a
+     * request on a single index.
+     */
+    public RangerAccessResult isAccessAllowed(RangerAccessRequestImpl request) {
+        Generation gen = currentGeneration();
+        String index = (String) request.getResource().getValue("index");
+
+        if (gen.authContext == null || index == null) {
+            return rangerPlugin.isAccessAllowed(request);
+        }
+
+        Signature signature = gen.signatures.get(index);
+        if (signature == null) {
+            try {
+                signature = computeSignature(gen.authContext, index);
+            } catch (RuntimeException e) {
+                // a policy refresh cleans up the previous auth context while we may still be using it
+                log.debug("Ranger auth context changed while computing the signature of {}", index, e);
+                return rangerPlugin.isAccessAllowed(request);
+            }
+            if (gen.signatures.size() < maxEntries) {
+                gen.signatures.putIfAbsent(index, signature);
+            }
+        }
+
+        if (signature == UNCACHEABLE) {
+            return rangerPlugin.isAccessAllowed(request);
+        }
+
+        DecisionKey key = new DecisionKey(request.getUser(), request.getUserGroups(), request.getAccessType(), signature);
+        Decision decision = gen.decisions.get(key);
+
+        if (decision != null) {
+            return replay(request, decision);
+        }
+
+        RangerAccessResult result = rangerPlugin.isAccessAllowed(request);
+
+        if (result != null) {
+            if (gen.decisions.size() >= maxEntries) {
+                log.debug("Ranger decision cache reached {} entries, clearing it", maxEntries);
+                gen.decisions.clear();
+            }
+            gen.decisions.put(key.copy(), new Decision(result.getIsAccessDetermined(), result.getIsAllowed(),
+                    result.getIsAudited(), result.getPolicyId()));
+        }
+
+        return result;
+    }
+
+    public int size() {
+        return generation.decisions.size();
+    }
+
+    private Generation currentGeneration() {
+        Generation gen = generation;
+        RangerAuthContext authContext = rangerPlugin.getCurrentRangerAuthContext();
+
+        if (gen.authContext != authContext) {
+            if (log.isDebugEnabled()) {
+                log.debug("Ranger auth context changed, dropping {} cached decisions", gen.decisions.size());
+            }
+            gen = new Generation(authContext);
+            generation = gen;
+        }
+
+        return gen;
+    }
+
+    private Signature computeSignature(RangerAuthContext authContext, String index) {
+        RangerAccessResourceImpl resource = new RangerAccessResourceImpl();
+        resource.setValue("index", index);
+
+        RangerAccessRequestImpl request = new RangerAccessRequestImpl(resource, RangerPolicyEngine.ANY_ACCESS, null, null);
+        authContext.preProcess(request);
+
+        Set<String> tagTypes = new TreeSet<String>();
+        Set<RangerTagForEval> tags = RangerAccessRequestUtil.getRequestTagsFromContext(request.getContext());
+
+        if (tags != null) {
+            for (RangerTagForEval tag : tags) {
+                if (tag.getValidityPeriods() != null && !tag.getValidityPeriods().isEmpty()) {
+                    return UNCACHEABLE;
+                }
+                tagTypes.add(tag.getType());
+            }
+        }
+
+        List<RangerPolicy> policies = authContext.getMatchingPolicies(request);
+        long[] policyIds = new long[policies.size()];
+
+        for (int i = 0; i < policyIds.length; i++) {
+            RangerPolicy policy = policies.get(i);
+            if (!isCacheable(policy)) {
+                return UNCACHEABLE;
+            }
+            policyIds[i] = policy.getId() != null ? policy.getId() : -1;
+        }
+        Arrays.sort(policyIds);
+
+        return new Signature(tagTypes, policyIds);
+    }
+
+    private static boolean isCacheable(RangerPolicy policy) {
+        return (policy.getValiditySchedules() == null || policy.getValiditySchedules().isEmpty())
+                && !hasConditions(policy.getPolicyItems())
+                && !hasConditions(policy.getDenyPolicyItems())
+                && !hasConditions(policy.getAllowExceptions())
+                && !hasConditions(policy.getDenyExceptions());
+    }
+
+    private static boolean hasConditions(List<RangerPolicy.RangerPolicyItem> items) {
+        if (items != null) {
+            for (RangerPolicy.RangerPolicyItem item : items) {
+                if (item.getConditions() != null && !item.getConditions().isEmpty()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private RangerAccessResult replay(RangerAccessRequest request, Decision decision) {
+        RangerAccessResult result = new RangerAccessResult(RangerPolicy.POLICY_TYPE_ACCESS, rangerPlugin.getServiceName(),
+                rangerPlugin.getServiceDef(), request);
+        result.setIsAccessDetermined(decision.determined);
+        result.setIsAllowed(decision.allowed);
+        result.setIsAudited(decision.audited);
+        result.setPolicyId(decision.policyId);
+
+        RangerAccessResultProcessor resultProcessor = rangerPlugin.getResultProcessor();
+        if (resultProcessor != null) {
+            resultProcessor.processResult(result);
+        }
+
+        return result;
+    }
+
+    private static final class Generation {
+        final RangerAuthContext authContext;
+        final ConcurrentHashMap<String, Signature> signatures = new ConcurrentHashMap<String, Signature>();
+        final ConcurrentHashMap<DecisionKey, Decision> decisions = new ConcurrentHashMap<DecisionKey, Decision>();
+
+        Generation(RangerAuthContext authContext) {
+            this.authContext = authContext;
+        }
+    }
+
+    private static final class Signature {
+        final Set<String> tagTypes;
+        final long[] policyIds;
+        final int hash;
+
+        Signature(Set<String> tagTypes, long[] policyIds) {
+            this.tagTypes = tagTypes;
+            this.policyIds = policyIds;
+            this.hash = 31 * tagTypes.hashCode() + Arrays.hashCode(policyIds);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Signature)) {
+                return false;
+            }
+            Signature other = (Signature) o;
+            return hash == other.hash && tagTypes.equals(other.tagTypes) && Arrays.equals(policyIds, other.policyIds);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class DecisionKey {
+        final String user;
+        final Set<String> groups;
+        final String accessType;
+        final Signature signature;
+        final int hash;
+
+        DecisionKey(String user, Set<String> groups, String accessType, Signature signature) {
+            this.user = user;
+            this.groups = groups != null ? groups : Collections.<String>emptySet();
+            this.accessType = accessType;
+            this.signature = signature;
+            this.hash = Objects.hash(user, this.groups, accessType, signature);
+        }
+
+        // the request's group set is not ours to keep
+        DecisionKey copy() {
+            return new DecisionKey(user, Collections.unmodifiableSet(new HashSet<String>(groups)), accessType, signature);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof DecisionKey)) {
+                return false;
+            }
+            DecisionKey other = (DecisionKey) o;
+            return hash == other.hash && Objects.equals(user, other.user) && Objects.equals(accessType, other.accessType)
+                    && signature.equals(other.signature) && groups.equals(other.groups);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Decision {
+        final boolean determined;
+        final boolean allowed;
+        final boolean audited;
+        final long policyId;
+
+        Decision(boolean determined, boolean allowed, boolean audited, long policyId) {
+            this.determined = determined;
+            this.allowed = allowed;
+            this.audited = audited;
+            this.policyId = policyId;
+        }
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright 2020 ThalesGroup
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.guavus.ranger;
+
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.WebResource;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.ranger.admin.client.RangerAdminClient;
+import org.apache.ranger.admin.client.RangerAdminRESTClient;
+import org.apache.ranger.audit.provider.MiscUtil;
+import org.apache.ranger.authorization.hadoop.config.RangerConfiguration;
+import org.apache.ranger.plugin.model.RangerPolicy;
+import org.apache.ranger.plugin.util.GrantRevokeRequest;
+import org.apache.ranger.plugin.util.RangerRESTClient;
+import org.apache.ranger.plugin.util.RangerRESTUtils;
+import org.apache.ranger.plugin.util.ServicePolicies;
+import org.apache.ranger.plugin.util.ServiceTags;
+import org.codehaus.jackson.annotate.JsonAutoDetect;
+import org.codehaus.jackson.annotate.JsonIgnoreProperties;
+
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Policy source downloading policy deltas and revalidating with ETags, so a refresh costs
+ * the size of the change rather than the size of the policy set where Ranger admin allows.
+ *
+ * Policy deltas are requested the way Ranger 2.x plugins do, relative to the last policies
+ * this client returned, and applied to them; admins without delta support answer with the
+ * full policies as before. Any delta that cannot be applied here, like a service or service
+ * definition change, falls back to a full download. Responses carrying an ETag, as set by
+ * a caching proxy in front of admin, are revalidated with If-None-Match.
+ *
+ * When policies are distributed, only the elected master node polls admin, the other
+ * nodes download from admin once the master publishes a version other than theirs, so they
+ * also follow the master when the version goes back, e.g. after the service was recreated.
+ *
+ * The policy engine is still rebuilt from the full policies on every change. Grants, revokes
+ * and tags are left to the stock REST client.
+ */
+public class RangerDeltaAdminRESTClient implements RangerAdminClient {
+
+    protected final Logger log = LogManager.getLogger(this.getClass());
+
+    private static final String PARAM_SUPPORTS_POLICY_DELTAS = "supportsPolicyDeltas";
+    private static final int CHANGE_TYPE_POLICY_CREATE = 0;
+    private static final int CHANGE_TYPE_POLICY_UPDATE = 1;
+    private static final int CHANGE_TYPE_POLICY_DELETE = 2;
+
+    private final RangerAdminRESTClient delegate = new RangerAdminRESTClient();
+    private final RangerRESTUtils restUtils = new RangerRESTUtils();
+    private RangerRESTClient restClient;
+    private String serviceName;
+    private String pluginId;
+    private String clusterName;
+    private boolean supportsPolicyDeltas;
+
+    // the policies last returned, deltas apply to them
+    private ServicePolicies lastPolicies = null;
+    private String lastETag = null;
+
+    @Override
+    public void init(String serviceName, String appId, String propertyPrefix) {
+        delegate.init(serviceName, appId, propertyPrefix);
+
+        RangerConfiguration config = RangerConfiguration.getInstance();
+        this.serviceName = serviceName;
+        this.pluginId = restUtils.getPluginId(serviceName, appId);
+        this.clusterName = config.get(propertyPrefix + ".access.cluster.name", "");
+        this.supportsPolicyDeltas = config.getBoolean(propertyPrefix + ".policy.rest.supports.policy.deltas", true);
+
+        restClient = new RangerRESTClient(config.get(propertyPrefix + ".policy.rest.url"),
+                config.get(propertyPrefix + ".policy.rest.ssl.config.file"));
+        restClient.setRestClientConnTimeOutMs(config.getInt(propertyPrefix + ".policy.rest.client.connection.timeoutMs", 120 * 1000));
+        restClient.setRestClientReadTimeOutMs(config.getInt(propertyPrefix + ".policy.rest.client.read.timeoutMs", 30 * 1000));
+    }
+
+    @Override
+    public synchronized ServicePolicies getServicePoliciesIfUpdated(long lastKnownVersion, long lastActivationTimeInMillis) throws Exception {
+        RangerPolicyDistribution distribution = RangerPolicyDistribution.getInstance();
+        if (distribution == null) {
+            return downloadPolicies(lastKnownVersion, lastActivationTimeInMillis);
+        }
+
+        Long publishedVersion = distribution.getPublishedVersion(serviceName);
+
+        if (!distribution.isLeader()) {
+            if (publishedVersion == null) {
+                distribution.recordFallbackDownload();
+                return downloadPolicies(lastKnownVersion, lastActivationTimeInMillis);
+            }
+            if (publishedVersion == lastKnownVersion) {
+                return null;
+            }
+            distribution.recordTriggeredDownload();
+            return downloadPolicies(lastKnownVersion, lastActivationTimeInMillis);
+        }
+
+        ServicePolicies ret = downloadPolicies(lastKnownVersion, lastActivationTimeInMillis);
+
+        // without a download, e.g. when this node was just elected, publish the version the engine is built from
+        long version = ret != null && ret.getPolicyVersion() != null ? ret.getPolicyVersion() : lastKnownVersion;
+        if (version >= 0 && (publishedVersion == null || publishedVersion != version)) {
+            distribution.publish(serviceName, version);
+        }
+        return ret;
+    }
+
+    private ServicePolicies downloadPolicies(long lastKnownVersion, long lastActivationTimeInMillis) throws Exception {
+        ServicePolicies base = lastPolicies;
+        if (base != null && (base.getPolicyVersion() == null || base.getPolicyVersion() != lastKnownVersion)) {
+            // e.g. policies loaded from the cache on startup, nothing to apply deltas to
+            base = null;
+        }
+
+        DeltaServicePolicies response = download(lastKnownVersion, lastActivationTimeInMillis, base != null);
+        if (response == null) {
+            return null;
+        }
+
+        boolean hasDeltas = response.getPolicyDeltas() != null && !response.getPolicyDeltas().isEmpty();
+        if (!hasDeltas && response.getPolicies() == null
+                && (response.getPolicyVersion() == null || response.getPolicyVersion() == lastKnownVersion)) {
+            // neither deltas nor policies, nothing changed
+            return null;
+        }
+
+        // neither deltas nor policies for a newer version leaves ret null, forcing a full download
+        ServicePolicies ret = hasDeltas ? applyDeltas(base, response)
+                : response.getPolicies() != null ? response.toServicePolicies() : null;
+
+        if (ret == null) {
+            log.info("Unable to build version " + response.getPolicyVersion() + " of the policies from the response, downloading all policies");
+            lastETag = null;
+            response = download(-1, lastActivationTimeInMillis, false);
+            ret = response != null && response.getPolicies() != null ? response.toServicePolicies() : null;
+        }
+
+        if (ret != null) {
+            lastPolicies = ret;
+        }
+        return ret;
+    }
+
+    @Override
+    public void grantAccess(GrantRevokeRequest request) throws Exception {
+        delegate.grantAccess(request);
+    }
+
+    @Override
+    public void revokeAccess(GrantRevokeRequest request) throws Exception {
+        delegate.revokeAccess(request);
+    }
+
+    @Override
+    public ServiceTags getServiceTagsIfUpdated(long lastKnownVersion, long lastActivationTimeInMillis) throws Exception {
+        return delegate.getServiceTagsIfUpdated(lastKnownVersion, lastActivationTimeInMillis);
+    }
+
+    @Override
+    public List<String> getTagTypes(String tagTypePattern) throws Exception {
+        return delegate.getTagTypes(tagTypePattern);
+    }
+
+    /**
+     * The policies newer than lastKnownVersion, null if there are none or they could not be downloaded.
+     */
+    private DeltaServicePolicies download(final long lastKnownVersion, final long lastActivationTimeInMillis,
+                                          final boolean deltas) {
+        final UserGroupInformation user = MiscUtil.getUGILoginUser();
+        final boolean isSecureMode = user != null && UserGroupInformation.isSecurityEnabled();
+        final String ifNoneMatch = lastPolicies != null && lastPolicies.getPolicyVersion() != null
+                && lastPolicies.getPolicyVersion() == lastKnownVersion ? lastETag : null;
+
+        PrivilegedAction<ClientResponse> action = () -> {
+            String url = (isSecureMode ? RangerRESTUtils.REST_URL_POLICY_GET_FOR_SECURE_SERVICE_IF_UPDATED
+                    : RangerRESTUtils.REST_URL_POLICY_GET_FOR_SERVICE_IF_UPDATED) + serviceName;
+            WebResource webResource = restClient.getResource(url)
+                    .queryParam(RangerRESTUtils.REST_PARAM_LAST_KNOWN_POLICY_VERSION, Long.toString(lastKnownVersion))
+                    .queryParam(RangerRESTUtils.REST_PARAM_LAST_ACTIVATION_TIME, Long.toString(lastActivationTimeInMillis))
+                    .queryParam(RangerRESTUtils.REST_PARAM_PLUGIN_ID, pluginId)
+                    .queryParam(RangerRESTUtils.REST_PARAM_CLUSTER_NAME, clusterName)
+                    .queryParam(PARAM_SUPPORTS_POLICY_DELTAS, Boolean.toString(deltas && supportsPolicyDeltas));
+
+            WebResource.Builder builder = webResource.accept(RangerRESTUtils.REST_MIME_TYPE_JSON);
+            if (ifNoneMatch != null) {
+                builder = builder.header("If-None-Match", ifNoneMatch);
+            }
+            return builder.get(ClientResponse.class);
+        };
+
+        ClientResponse response = isSecureMode ? user.doAs(action) : action.run();
+
+        if (response == null || response.getStatus() == 304) {
+            if (log.isDebugEnabled()) {
+                log.debug("No change in policies of service " + serviceName + " since version " + lastKnownVersion);
+            }
+            return null;
+        }
+
+        if (response.getStatus() != 200) {
+            log.error("Error getting policies of service " + serviceName + ", lastKnownVersion: " + lastKnownVersion
+                    + ", status: " + response.getStatus() + ", response: " + (response.hasEntity() ? response.getEntity(String.class) : null));
+            return null;
+        }
+
+        lastETag = response.getHeaders().getFirst("ETag");
+        return response.getEntity(DeltaServicePolicies.class);
+    }
+
+    /**
+     * The base policies with the deltas applied, null if they cannot be applied.
+     */
+    private ServicePolicies applyDeltas(ServicePolicies base, DeltaServicePolicies response) {
+        if (base == null) {
+            return null;
+        }
+
+        Map<Long, RangerPolicy> policies = byId(base.getPolicies());
+        ServicePolicies.TagPolicies baseTagPolicies = base.getTagPolicies();
+        Map<Long, RangerPolicy> tagPolicies = baseTagPolicies != null ? byId(baseTagPolicies.getPolicies()) : null;
+
+        for (PolicyDelta delta : response.getPolicyDeltas()) {
+            RangerPolicy policy = delta.getPolicy();
+            Long id = delta.getId() != null ? delta.getId() : (policy != null ? policy.getId() : null);
+            Integer changeType = delta.getChangeType();
+
+            if (id == null || changeType == null) {
+                return null;
+            }
+
+            Map<Long, RangerPolicy> target = policies;
+            if (policy != null && policy.getService() != null && !policy.getService().equals(serviceName)) {
+                if (tagPolicies == null || !policy.getService().equals(baseTagPolicies.getServiceName())) {
+                    return null;
+                }
+                target = tagPolicies;
+            }
+
+            if (changeType == CHANGE_TYPE_POLICY_DELETE) {
+                // a deleted policy may come with its id only, the service it was in is not known
+                policies.remove(id);
+                if (tagPolicies != null) {
+                    tagPolicies.remove(id);
+                }
+            } else if ((changeType == CHANGE_TYPE_POLICY_CREATE || changeType == CHANGE_TYPE_POLICY_UPDATE) && policy != null) {
+                target.put(id, policy);
+            } else {
+                return null;
+            }
+        }
+
+        ServicePolicies ret = new ServicePolicies();
+        ret.setServiceName(base.getServiceName());
+        ret.setServiceId(base.getServiceId());
+        ret.setPolicyVersion(response.getPolicyVersion());
+        ret.setPolicyUpdateTime(response.getPolicyUpdateTime());
+        ret.setServiceDef(response.getServiceDef() != null ? response.getServiceDef() : base.getServiceDef());
+        ret.setAuditMode(response.getAuditMode() != null ? response.getAuditMode() : base.getAuditMode());
+        ret.setPolicies(new ArrayList<RangerPolicy>(policies.values()));
+
+        if (baseTagPolicies != null) {
+            ServicePolicies.TagPolicies retTagPolicies = new ServicePolicies.TagPolicies();
+            ServicePolicies.TagPolicies responseTagPolicies = response.getTagPolicies();
+            retTagPolicies.setServiceName(baseTagPolicies.getServiceName());
+            retTagPolicies.setServiceId(baseTagPolicies.getServiceId());
+            retTagPolicies.setPolicyVersion(responseTagPolicies != null ? responseTagPolicies.getPolicyVersion() : baseTagPolicies.getPolicyVersion());
+            retTagPolicies.setPolicyUpdateTime(responseTagPolicies != null ? responseTagPolicies.getPolicyUpdateTime() : baseTagPolicies.getPolicyUpdateTime());
+            retTagPolicies.setServiceDef(responseTagPolicies != null && responseTagPolicies.getServiceDef() != null
+                    ? responseTagPolicies.getServiceDef() : baseTagPolicies.getServiceDef());
+            retTagPolicies.setAuditMode(baseTagPolicies.getAuditMode());
+            retTagPolicies.setPolicies(new ArrayList<RangerPolicy>(tagPolicies.values()));
+            ret.setTagPolicies(retTagPolicies);
+        } else if (response.getTagPolicies() != null) {
+            // a tag service was linked, only a full download has its policies
+            return null;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Applied " + response.getPolicyDeltas().size() + " policy deltas to version " + base.getPolicyVersion()
+                    + " of service " + serviceName + ", now at version " + ret.getPolicyVersion());
+        }
+
+        return ret;
+    }
+
+    private static Map<Long, RangerPolicy> byId(List<RangerPolicy> policies) {
+        Map<Long, RangerPolicy> ret = new LinkedHashMap<Long, RangerPolicy>();
+        if (policies != null) {
+            for (RangerPolicy policy : policies) {
+                ret.put(policy.getId(), policy);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * The policy download response of Ranger 2.x admins, carrying either the policies or
+     * the changes to them since the requested version.
+     */
+    @JsonAutoDetect(fieldVisibility = JsonAutoDetect.Visibility.ANY)
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class DeltaServicePolicies extends ServicePolicies {
+        private static final long serialVersionUID = 1L;
+
+        private List<PolicyDelta> policyDeltas;
+
+        public List<PolicyDelta> getPolicyDeltas() {
+            return policyDeltas;
+        }
+
+        public void setPolicyDeltas(List<PolicyDelta> policyDeltas) {
+            this.policyDeltas = policyDeltas;
+        }
+
+        ServicePolicies toServicePolicies() {
+            ServicePolicies ret = new ServicePolicies();
+            ret.setServiceName(getServiceName());
+            ret.setServiceId(getServiceId());
+            ret.setPolicyVersion(getPolicyVersion());
+            ret.setPolicyUpdateTime(getPolicyUpdateTime());
+            ret.setPolicies(getPolicies());
+            ret.setServiceDef(getServiceDef());
+            ret.setAuditMode(getAuditMode());
+            ret.setTagPolicies(getTagPolicies());
+            return ret;
+        }
+    }
+
+    @JsonAutoDetect(fieldVisibility = JsonAutoDetect.Visibility.ANY)
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class PolicyDelta {
+        private Long id;
+        private Integer changeType;
+        private RangerPolicy policy;
+
+        public Long getId() {
+            return id;
+        }
+
+        public void setId(Long id) {
+            this.id = id;
+        }
+
+        public Integer getChangeType() {
+            return changeType;
+        }
+
+        public void setChangeType(Integer changeType) {
+            this.changeType = changeType;
+        }
+
+        public RangerPolicy getPolicy() {
+            return policy;
+        }
+
+        public void setPolicy(RangerPolicy policy) {
+            this.policy = policy;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2020 ThalesGroup
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.guavus.ranger;
+
+import org.apache.ranger.plugin.service.RangerBasePlugin;
+import org.apache.ranger.plugin.util.ServicePolicies;
+
+/**
+ * The Ranger plugin of the evaluator, which keeps the policies last set on the policy
+ * engine so they can be inspected without going through the engine.
+ */
+public class RangerElasticsearchPlugin extends RangerBasePlugin {
+
+    private volatile ServicePolicies servicePolicies = null;
+
+    public RangerElasticsearchPlugin(String serviceType, String appId) {
+        super(serviceType, appId);
+    }
+
+    @Override
+    public void setPolicies(ServicePolicies policies) {
+        super.setPolicies(policies);
+        servicePolicies = policies;
+    }
+
+    /**
+     * The policies the engine was last built from, null until the first download.
+     */
+    public ServicePolicies getServicePolicies() {
+        return servicePolicies;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2020 ThalesGroup
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.guavus.ranger;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-stage timing of RangerPrivilegesEvaluator.evaluate(), broken down by request class.
+ *
+ * Stages are timed with System.nanoTime() into a thread-confined timer that is started
+ * and finished around each evaluation, so recording costs two clock reads per stage and
+ * no allocation. Finished evaluations go to HdrHistogram recorders per request class and
+ * stage, and evaluations over the slow threshold are logged with their stage timings.
+ */
+public class RangerEvaluationMetrics implements ToXContentObject {
+
+    protected final Logger log = LogManager.getLogger(this.getClass());
+    protected final Logger slowLog = LogManager.getLogger("opendistro_security_ranger_slowlog");
+
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(1);
+    private static final int SIGNIFICANT_DIGITS = 2;
+    // bounds the number of distinct request classes tracked, the rest share one entry
+    private static final int MAX_REQUEST_CLASSES = 200;
+    private static final String OTHER_REQUEST_CLASSES = "_other";
+
+    public enum Stage {
+        RESOLVE_INDICES("resolve_indices"),
+        // part of resolve_indices
+        DATE_MATH("date_math"),
+        AUTHORIZE("authorize"),
+        TOTAL("total");
+
+        private final String name;
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private final long slowThresholdNanos;
+    private final ConcurrentHashMap<String, RequestClassStats> stats = new ConcurrentHashMap<String, RequestClassStats>();
+    private final AtomicLong slowRequests = new AtomicLong();
+    private final ThreadLocal<Timer> timers = ThreadLocal.withInitial(Timer::new);
+
+    /**
+     * @param slowThresholdMs evaluations taking longer are logged, negative to disable
+     */
+    public RangerEvaluationMetrics(long slowThresholdMs) {
+        this.slowThresholdNanos = slowThresholdMs < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(slowThresholdMs);
+    }
+
+    public void start() {
+        Timer timer = timers.get();
+        timer.reset();
+        timer.active = true;
+        timer.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Adds the time since start to the stage of the evaluation running on this thread.
+     */
+    public void record(Stage stage, long startNanos) {
+        Timer timer = timers.get();
+        if (timer.active) {
+            timer.stageNanos[stage.ordinal()] += System.nanoTime() - startNanos;
+        }
+    }
+
+    public void recordIndices(int count) {
+        Timer timer = timers.get();
+        if (timer.active) {
+            timer.indices += count;
+        }
+    }
+
+    public void finish(Class<?> requestClass, String action, String user, boolean allowed) {
+        Timer timer = timers.get();
+        if (!timer.active) {
+            return;
+        }
+        timer.active = false;
+        timer.stageNanos[Stage.TOTAL.ordinal()] = System.nanoTime() - timer.startNanos;
+
+        RequestClassStats classStats = stats.get(requestClass.getSimpleName());
+        if (classStats == null) {
+            String key = stats.size() < MAX_REQUEST_CLASSES ? requestClass.getSimpleName() : OTHER_REQUEST_CLASSES;
+            classStats = stats.computeIfAbsent(key, k -> new RequestClassStats());
+        }
+        classStats.record(timer);
+
+        if (slowThresholdNanos >= 0 && timer.stageNanos[Stage.TOTAL.ordinal()] > slowThresholdNanos) {
+            slowRequests.incrementAndGet();
+            slowLog.warn("Slow authorization of " + action + " (" + requestClass.getSimpleName() + ") for user: " + user
+                    + ", allowed: " + allowed + ", indices: " + timer.indices + ", " + timer.describe());
+        }
+    }
+
+    public long getSlowRequests() {
+        return slowRequests.get();
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field("slow_threshold_ms", slowThresholdNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(slowThresholdNanos));
+        builder.field("slow_requests", slowRequests.get());
+        builder.startObject("request_classes");
+        for (Map.Entry<String, RequestClassStats> entry : new TreeMap<String, RequestClassStats>(stats).entrySet()) {
+            builder.field(entry.getKey());
+            entry.getValue().toXContent(builder);
+        }
+        builder.endObject();
+        builder.endObject();
+        return builder;
+    }
+
+    private static final class Timer {
+        final long[] stageNanos = new long[STAGES.length];
+        long startNanos;
+        int indices;
+        boolean active;
+
+        void reset() {
+            for (int i = 0; i < stageNanos.length; i++) {
+                stageNanos[i] = 0;
+            }
+            indices = 0;
+        }
+
+        String describe() {
+            StringBuilder sb = new StringBuilder();
+            for (Stage stage : STAGES) {
+                if (sb.length() > 0) {
+                    sb.append(", ");
+                }
+                sb.append(stage).append(": ").append(stageNanos[stage.ordinal()] / 1000).append(" us");
+            }
+            return sb.toString();
+        }
+    }
+
+    private static final class RequestClassStats {
+        final Recorder[] recorders = new Recorder[STAGES.length];
+        final Histogram[] totals = new Histogram[STAGES.length];
+        final AtomicLong indices = new AtomicLong();
+
+        RequestClassStats() {
+            for (int i = 0; i < STAGES.length; i++) {
+                recorders[i] = new Recorder(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+                totals[i] = new Histogram(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+            }
+        }
+
+        void record(Timer timer) {
+            for (int i = 0; i < STAGES.length; i++) {
+                recorders[i].recordValue(Math.min(HIGHEST_TRACKABLE_MICROS, timer.stageNanos[i] / 1000));
+            }
+            indices.addAndGet(timer.indices);
+        }
+
+        synchronized void toXContent(XContentBuilder builder) throws IOException {
+            builder.startObject();
+            for (int i = 0; i < STAGES.length; i++) {
+                totals[i].add(recorders[i].getIntervalHistogram());
+            }
+            long count = totals[Stage.TOTAL.ordinal()].getTotalCount();
+            builder.field("count", count);
+            builder.field("avg_indices", count == 0 ? 0 : indices.get() / count);
+            for (int i = 0; i < STAGES.length; i++) {
+                Histogram histogram = totals[i];
+                builder.startObject(STAGES[i].toString());
+                builder.field("mean_us", (long) histogram.getMean());
+                builder.field("p50_us", histogram.getValueAtPercentile(50));
+                builder.field("p99_us", histogram.getValueAtPercentile(99));
+                builder.field("max_us", histogram.getMaxValue());
+                builder.endObject();
+            }
+            builder.endObject();
+        }
+    }
+}
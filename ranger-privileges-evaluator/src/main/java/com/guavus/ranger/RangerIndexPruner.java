@@ -0,0 +1,314 @@
+/*
+ * Copyright 2020 ThalesGroup
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.guavus.ranger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.ranger.plugin.model.RangerPolicy;
+import org.apache.ranger.plugin.model.RangerServiceDef;
+import org.apache.ranger.plugin.policyengine.RangerPolicyEngine;
+import org.apache.ranger.plugin.util.ServicePolicies;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Finds indices a user cannot be granted an access type on by any policy, without
+ * asking the policy engine.
+ *
+ * For each (user, groups, access type) the index patterns of all enabled resource
+ * policies with an allow item for the user, one of its groups or public, granting the
+ * access type or one implying it, are collected once per policy download. Deny items
+ * and exceptions are ignored and policies with macros match any index, so an index
+ * outside these patterns is certainly denied by the engine. Tag policies can grant
+ * access to any index, so nothing is pruned for users matched by an enabled tag policy.
+ */
+public class RangerIndexPruner {
+
+    protected final Logger log = LogManager.getLogger(this.getClass());
+
+    private static final String INDEX_RESOURCE = "index";
+    private static final int MAX_ENTRIES = 10000;
+    // no pruning for this user, see class comment
+    private static final Permitted ANY = new Permitted(true, Collections.<String>emptySet(), null);
+
+    private final RangerElasticsearchPlugin rangerPlugin;
+    private volatile Generation generation = new Generation(null);
+
+    public RangerIndexPruner(RangerElasticsearchPlugin rangerPlugin) {
+        this.rangerPlugin = rangerPlugin;
+    }
+
+    /**
+     * One of the indices no policy can grant the access type on to the user, null if
+     * there is none or the policies are not known yet.
+     */
+    public String findDeniedIndex(String user, Set<String> groups, String accessType, Set<String> indices) {
+        Generation gen = currentGeneration();
+        if (gen.servicePolicies == null) {
+            return null;
+        }
+
+        Key key = new Key(user, groups, accessType);
+        Permitted permitted = gen.permitted.get(key);
+        if (permitted == null) {
+            permitted = computePermitted(gen.servicePolicies, key);
+            if (gen.permitted.size() >= MAX_ENTRIES) {
+                gen.permitted.clear();
+            }
+            gen.permitted.put(key.copy(), permitted);
+        }
+
+        if (permitted.any) {
+            return null;
+        }
+
+        for (String index : indices) {
+            if (!permitted.mayAllow(index)) {
+                return index;
+            }
+        }
+        return null;
+    }
+
+    private Generation currentGeneration() {
+        Generation gen = generation;
+        ServicePolicies servicePolicies = rangerPlugin.getServicePolicies();
+
+        if (gen.servicePolicies != servicePolicies) {
+            gen = new Generation(servicePolicies);
+            generation = gen;
+        }
+
+        return gen;
+    }
+
+    private Permitted computePermitted(ServicePolicies servicePolicies, Key key) {
+        ServicePolicies.TagPolicies tagPolicies = servicePolicies.getTagPolicies();
+        if (tagPolicies != null && tagPolicies.getPolicies() != null) {
+            for (RangerPolicy policy : tagPolicies.getPolicies()) {
+                if (isEnabledAccessPolicy(policy) && matchesUser(policy, key)) {
+                    return ANY;
+                }
+            }
+        }
+
+        Set<String> grantingAccessTypes = grantingAccessTypes(servicePolicies.getServiceDef(), key.accessType);
+        Set<String> exact = new HashSet<String>();
+        List<String> wildcards = new ArrayList<String>();
+
+        if (servicePolicies.getPolicies() != null) {
+            for (RangerPolicy policy : servicePolicies.getPolicies()) {
+                if (!isEnabledAccessPolicy(policy) || !grants(policy, key, grantingAccessTypes)) {
+                    continue;
+                }
+
+                RangerPolicy.RangerPolicyResource resource = policy.getResources() != null ? policy.getResources().get(INDEX_RESOURCE) : null;
+                if (resource == null || resource.getValues() == null || Boolean.TRUE.equals(resource.getIsExcludes())) {
+                    return ANY;
+                }
+
+                for (String value : resource.getValues()) {
+                    // {USER} style macros are resolved by the engine per request
+                    if (value.equals("*") || value.indexOf('{') >= 0) {
+                        return ANY;
+                    } else if (value.indexOf('*') >= 0 || value.indexOf('?') >= 0) {
+                        wildcards.add(toRegex(value));
+                    } else {
+                        exact.add(value.toLowerCase(Locale.ROOT));
+                    }
+                }
+            }
+        }
+
+        Pattern pattern = wildcards.isEmpty() ? null : Pattern.compile(String.join("|", wildcards), Pattern.CASE_INSENSITIVE);
+
+        if (log.isDebugEnabled()) {
+            log.debug("Index patterns permitting {} to {}: {} names, {}", key.user, key.accessType, exact.size(), pattern);
+        }
+
+        return new Permitted(false, exact, pattern);
+    }
+
+    static boolean isEnabledAccessPolicy(RangerPolicy policy) {
+        return !Boolean.FALSE.equals(policy.getIsEnabled())
+                && (policy.getPolicyType() == null || policy.getPolicyType() == RangerPolicy.POLICY_TYPE_ACCESS);
+    }
+
+    private static boolean matchesUser(RangerPolicy policy, Key key) {
+        if (policy.getPolicyItems() != null) {
+            for (RangerPolicy.RangerPolicyItem item : policy.getPolicyItems()) {
+                if (matchesUser(item, key)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean matchesUser(RangerPolicy.RangerPolicyItem item, Key key) {
+        return matchesUser(item, key.user, key.groups);
+    }
+
+    /**
+     * Whether the policy item applies to the user, ignoring its conditions.
+     */
+    static boolean matchesUser(RangerPolicy.RangerPolicyItem item, String user, Set<String> groups) {
+        if (item.getUsers() != null && (item.getUsers().contains(user) || item.getUsers().contains(RangerPolicyEngine.USER_CURRENT))) {
+            return true;
+        }
+        if (item.getGroups() != null) {
+            for (String group : item.getGroups()) {
+                if (RangerPolicyEngine.GROUP_PUBLIC.equals(group) || groups.contains(group)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean grants(RangerPolicy policy, Key key, Set<String> grantingAccessTypes) {
+        if (policy.getPolicyItems() != null) {
+            for (RangerPolicy.RangerPolicyItem item : policy.getPolicyItems()) {
+                if (item.getAccesses() == null || !matchesUser(item, key)) {
+                    continue;
+                }
+                for (RangerPolicy.RangerPolicyItemAccess access : item.getAccesses()) {
+                    if (!Boolean.FALSE.equals(access.getIsAllowed()) && grantingAccessTypes.contains(access.getType())) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The access type itself and all access types implying it, directly or not.
+     */
+    private static Set<String> grantingAccessTypes(RangerServiceDef serviceDef, String accessType) {
+        Set<String> ret = new HashSet<String>();
+        ret.add(accessType);
+
+        if (serviceDef == null || serviceDef.getAccessTypes() == null) {
+            return ret;
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (RangerServiceDef.RangerAccessTypeDef def : serviceDef.getAccessTypes()) {
+                if (!ret.contains(def.getName()) && def.getImpliedGrants() != null
+                        && !Collections.disjoint(def.getImpliedGrants(), ret)) {
+                    ret.add(def.getName());
+                    changed = true;
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    private static String toRegex(String value) {
+        StringBuilder sb = new StringBuilder();
+        int start = 0;
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '*' || c == '?') {
+                if (i > start) {
+                    sb.append(Pattern.quote(value.substring(start, i)));
+                }
+                sb.append(c == '*' ? ".*" : ".");
+                start = i + 1;
+            }
+        }
+        if (start < value.length()) {
+            sb.append(Pattern.quote(value.substring(start)));
+        }
+
+        return sb.toString();
+    }
+
+    private static final class Generation {
+        final ServicePolicies servicePolicies;
+        final ConcurrentHashMap<Key, Permitted> permitted = new ConcurrentHashMap<Key, Permitted>();
+
+        Generation(ServicePolicies servicePolicies) {
+            this.servicePolicies = servicePolicies;
+        }
+    }
+
+    private static final class Permitted {
+        final boolean any;
+        final Set<String> exact;
+        final Pattern pattern;
+
+        Permitted(boolean any, Set<String> exact, Pattern pattern) {
+            this.any = any;
+            this.exact = exact;
+            this.pattern = pattern;
+        }
+
+        boolean mayAllow(String index) {
+            return exact.contains(index.toLowerCase(Locale.ROOT)) || (pattern != null && pattern.matcher(index).matches());
+        }
+    }
+
+    private static final class Key {
+        final String user;
+        final Set<String> groups;
+        final String accessType;
+        final int hash;
+
+        Key(String user, Set<String> groups, String accessType) {
+            this.user = user;
+            this.groups = groups != null ? groups : Collections.<String>emptySet();
+            this.accessType = accessType;
+            this.hash = Objects.hash(user, this.groups, accessType);
+        }
+
+        // the user's group set is not ours to keep
+        Key copy() {
+            return new Key(user, Collections.unmodifiableSet(new HashSet<String>(groups)), accessType);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && Objects.equals(user, other.user) && Objects.equals(accessType, other.accessType)
+                    && groups.equals(other.groups);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2020 ThalesGroup
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.guavus.ranger;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+
+/**
+ * An immutable set of index names.
+ *
+ * Indices of the cluster metadata the set was built against are kept as a bitset over
+ * their ordinals in that metadata, any other name (_all, _cluster, missing or remote
+ * indices) in a sorted array. Sets built against the same ordinals are unioned with a
+ * bitwise or, without hashing the names.
+ */
+public final class RangerIndexSet extends AbstractSet<String> {
+
+    private static final String[] NO_NAMES = new String[0];
+    // unresolved raw index names may contain null
+    private static final Comparator<String> NAME_ORDER = Comparator.nullsFirst(Comparator.<String>naturalOrder());
+
+    private final RangerIndexSets.Ordinals ordinals;
+    private final BitSet bits;
+    private final String[] others;
+    private final int size;
+    private int hash;
+
+    private RangerIndexSet(RangerIndexSets.Ordinals ordinals, BitSet bits, String[] others) {
+        this.ordinals = ordinals;
+        this.bits = bits;
+        this.others = others;
+        this.size = bits.cardinality() + others.length;
+    }
+
+    public static Builder builder(RangerIndexSets.Ordinals ordinals) {
+        return new Builder(ordinals);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (o != null && !(o instanceof String)) {
+            return false;
+        }
+        int ordinal = ordinals.ordinal((String) o);
+        if (ordinal >= 0) {
+            return bits.get(ordinal);
+        }
+        return Arrays.binarySearch(others, (String) o, NAME_ORDER) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int ordinal = bits.nextSetBit(0);
+            private int other = 0;
+
+            @Override
+            public boolean hasNext() {
+                return ordinal >= 0 || other < others.length;
+            }
+
+            @Override
+            public String next() {
+                if (ordinal >= 0) {
+                    String name = ordinals.name(ordinal);
+                    ordinal = bits.nextSetBit(ordinal + 1);
+                    return name;
+                }
+                if (other < others.length) {
+                    return others[other++];
+                }
+                throw new NoSuchElementException();
+            }
+        };
+    }
+
+    RangerIndexSets.Ordinals getOrdinals() {
+        return ordinals;
+    }
+
+    /**
+     * The next ordinal in the set from the given one on, -1 if there is none.
+     */
+    int nextOrdinal(int from) {
+        return bits.nextSetBit(from);
+    }
+
+    /**
+     * Whether the set holds names that are not concrete indices of its metadata.
+     */
+    boolean hasOthers() {
+        return others.length > 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o instanceof RangerIndexSet && ((RangerIndexSet) o).ordinals == ordinals) {
+            RangerIndexSet other = (RangerIndexSet) o;
+            return bits.equals(other.bits) && Arrays.equals(others, other.others);
+        }
+        return super.equals(o);
+    }
+
+    // the set is immutable, so the name hash is only computed once
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0 && size > 0) {
+            h = super.hashCode();
+            hash = h;
+        }
+        return h;
+    }
+
+    /**
+     * Collects index names and other index sets; not thread safe.
+     */
+    public static final class Builder {
+        private final RangerIndexSets.Ordinals ordinals;
+        private final BitSet bits = new BitSet();
+        private TreeSet<String> others = null;
+
+        private Builder(RangerIndexSets.Ordinals ordinals) {
+            this.ordinals = ordinals;
+        }
+
+        public Builder add(String name) {
+            int ordinal = ordinals.ordinal(name);
+            if (ordinal >= 0) {
+                bits.set(ordinal);
+            } else {
+                if (others == null) {
+                    others = new TreeSet<String>(NAME_ORDER);
+                }
+                others.add(name);
+            }
+            return this;
+        }
+
+        public Builder addAll(String[] names) {
+            for (String name : names) {
+                add(name);
+            }
+            return this;
+        }
+
+        public Builder addAll(Collection<String> names) {
+            if (names instanceof RangerIndexSet && ((RangerIndexSet) names).ordinals == ordinals) {
+                RangerIndexSet set = (RangerIndexSet) names;
+                bits.or(set.bits);
+                if (set.others.length > 0) {
+                    if (others == null) {
+                        others = new TreeSet<String>(NAME_ORDER);
+                    }
+                    others.addAll(Arrays.asList(set.others));
+                }
+            } else {
+                for (String name : names) {
+                    add(name);
+                }
+            }
+            return this;
+        }
+
+        public RangerIndexSet build() {
+            String[] otherNames = others == null ? NO_NAMES : others.toArray(new String[others.size()]);
+            return new RangerIndexSet(ordinals, (BitSet) bits.clone(), otherNames);
+        }
+
+        @Override
+        public String toString() {
+            return build().toString();
+        }
+    }
+}
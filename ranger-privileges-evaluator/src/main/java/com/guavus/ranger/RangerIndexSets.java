@@ -0,0 +1,170 @@
+/*
+ * Copyright 2020 ThalesGroup
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.guavus.ranger;
+
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.cluster.metadata.MetaData;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Index ordinals and interned index sets of the current cluster metadata.
+ *
+ * The concrete indices of a metadata are numbered in name order the first time a set is
+ * built against it. Index expressions resolved against that metadata are interned, so
+ * requests naming the same indices, like the items of a bulk request, share one set
+ * and resolve it once. Everything is dropped when the metadata changes.
+ */
+public class RangerIndexSets {
+
+    // bounds the number of interned resolutions per metadata
+    private static final int MAX_INTERNED = 10000;
+
+    private volatile Generation generation = null;
+
+    /**
+     * The ordinals of the indices of the given metadata.
+     */
+    public Ordinals ordinals(MetaData metaData) {
+        return generation(metaData).ordinals;
+    }
+
+    public RangerIndexSet.Builder builder(MetaData metaData) {
+        return RangerIndexSet.builder(ordinals(metaData));
+    }
+
+    public RangerIndexSet of(MetaData metaData, String[] names) {
+        return builder(metaData).addAll(names).build();
+    }
+
+    /**
+     * The interned set of the index expressions as resolved against the metadata by the
+     * given resolution, which is only run if these expressions were not resolved before.
+     */
+    public RangerIndexSet resolve(MetaData metaData, IndicesOptions indicesOptions, String[] expressions,
+                                  Supplier<String[]> resolution) {
+        Generation gen = generation(metaData);
+        Key key = new Key(indicesOptions, Arrays.asList(expressions));
+
+        RangerIndexSet set = gen.interned.get(key);
+        if (set == null) {
+            set = RangerIndexSet.builder(gen.ordinals).addAll(resolution.get()).build();
+            if (gen.interned.size() >= MAX_INTERNED) {
+                gen.interned.clear();
+            }
+            // the request may still change its indices, keep a copy
+            gen.interned.put(new Key(indicesOptions, Arrays.asList(expressions.clone())), set);
+        }
+        return set;
+    }
+
+    private Generation generation(MetaData metaData) {
+        Generation gen = generation;
+        if (gen == null || gen.metaData != metaData) {
+            gen = new Generation(metaData);
+            generation = gen;
+        }
+        return gen;
+    }
+
+    /**
+     * Concrete index names of a metadata, numbered in name order.
+     */
+    public static final class Ordinals {
+        private final long version;
+        private final String[] names;
+        private final Map<String, Integer> ordinals;
+
+        Ordinals(long version, String[] concreteIndices) {
+            this.version = version;
+            this.names = concreteIndices.clone();
+            Arrays.sort(this.names);
+            this.ordinals = new HashMap<String, Integer>(names.length * 4 / 3 + 1);
+            for (int i = 0; i < names.length; i++) {
+                ordinals.put(names[i], i);
+            }
+        }
+
+        /**
+         * The ordinal of the index, -1 if it is not a concrete index of the metadata.
+         */
+        public int ordinal(String name) {
+            Integer ordinal = name != null ? ordinals.get(name) : null;
+            return ordinal != null ? ordinal : -1;
+        }
+
+        public String name(int ordinal) {
+            return names[ordinal];
+        }
+
+        public int size() {
+            return names.length;
+        }
+
+        /**
+         * The version of the metadata the indices are from.
+         */
+        public long getVersion() {
+            return version;
+        }
+    }
+
+    private static final class Generation {
+        final MetaData metaData;
+        final Ordinals ordinals;
+        final ConcurrentHashMap<Key, RangerIndexSet> interned = new ConcurrentHashMap<Key, RangerIndexSet>();
+
+        Generation(MetaData metaData) {
+            this.metaData = metaData;
+            this.ordinals = new Ordinals(metaData.version(), metaData.getConcreteAllIndices());
+        }
+    }
+
+    private static final class Key {
+        final IndicesOptions indicesOptions;
+        final List<String> expressions;
+        final int hash;
+
+        Key(IndicesOptions indicesOptions, List<String> expressions) {
+            this.indicesOptions = indicesOptions;
+            this.expressions = expressions;
+            this.hash = Objects.hash(indicesOptions, expressions);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && Objects.equals(indicesOptions, other.indicesOptions) && expressions.equals(other.expressions);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
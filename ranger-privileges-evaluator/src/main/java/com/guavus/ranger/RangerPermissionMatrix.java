@@ -0,0 +1,440 @@
+/*
+ * Copyright 2020 ThalesGroup
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.guavus.ranger;
+
+import com.google.common.base.Strings;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.ranger.plugin.model.RangerPolicy;
+import org.apache.ranger.plugin.policyengine.RangerAccessRequestImpl;
+import org.apache.ranger.plugin.policyengine.RangerAccessResourceImpl;
+import org.apache.ranger.plugin.policyengine.RangerAccessResult;
+import org.apache.ranger.plugin.policyengine.RangerAccessResultProcessor;
+import org.apache.ranger.plugin.service.RangerAuthContext;
+import org.apache.ranger.plugin.service.RangerAuthContextListener;
+import org.apache.ranger.plugin.util.ServicePolicies;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Precomputed Ranger decisions of known users over all indices of the cluster.
+ *
+ * For each (user, groups, access type) seen, a row holding a bitset of the index ordinals
+ * the user is allowed on is built by evaluating every index against the policy engine on
+ * a background thread. A check on a resolved index set is then answered by testing its
+ * ordinals against the row. All rows are rebuilt in the background when the policies, the
+ * tags or the cluster's indices change, and checks are left to the engine meanwhile.
+ *
+ * Only fully allowed checks are answered; anything else, as well as users matched by a
+ * policy with conditions or validity schedules or by a tag policy, goes to the engine.
+ * The row's decisions are still passed to the plugin's result processor, so audit is unchanged.
+ */
+public class RangerPermissionMatrix implements RangerAuthContextListener {
+
+    protected final Logger log = LogManager.getLogger(this.getClass());
+
+    private static final int QUEUE_SIZE = 1000;
+    // users the matrix cannot represent, see class comment
+    private static final Row UNREPRESENTABLE = new Row(new BitSet(), new Decision[0], new BitSet[0]);
+
+    private final RangerElasticsearchPlugin rangerPlugin;
+    private final String clusterName;
+    private final int maxRows;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong contextChanges = new AtomicLong();
+    private volatile Generation generation = null;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong builds = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public RangerPermissionMatrix(RangerElasticsearchPlugin rangerPlugin, String clusterName, int maxRows) {
+        this.rangerPlugin = rangerPlugin;
+        this.clusterName = clusterName;
+        this.maxRows = maxRows;
+        this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), r -> {
+            Thread thread = new Thread(r, "ranger-permission-matrix");
+            thread.setDaemon(true);
+            return thread;
+        });
+        rangerPlugin.registerAuthContextEventListener(this);
+    }
+
+    @Override
+    public void contextChanged() {
+        // the next check starts a generation and rebuilds the known rows
+        contextChanges.incrementAndGet();
+    }
+
+    /**
+     * True if the user of the request is allowed its access type on every index, false
+     * if the matrix cannot tell and the engine has to decide.
+     */
+    public boolean isAllowed(RangerAccessRequestImpl request, RangerAccessResourceImpl resource, Set<String> indices) {
+        if (!(indices instanceof RangerIndexSet)) {
+            return false;
+        }
+        RangerIndexSet set = (RangerIndexSet) indices;
+        if (set.isEmpty() || set.hasOthers()) {
+            return false;
+        }
+
+        Generation gen = currentGeneration(set.getOrdinals());
+        if (gen == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+
+        RowKey key = new RowKey(request.getUser(), request.getUserGroups(), request.getAccessType());
+        Row row = gen.rows.get(key);
+        if (row == null) {
+            misses.incrementAndGet();
+            schedule(gen, key.copy());
+            return false;
+        }
+
+        for (int i = set.nextOrdinal(0); i >= 0; i = set.nextOrdinal(i + 1)) {
+            if (!row.allowed.get(i)) {
+                misses.incrementAndGet();
+                return false;
+            }
+        }
+
+        hits.incrementAndGet();
+        replay(request, resource, set, row);
+        return true;
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    public int getRows() {
+        Generation gen = generation;
+        return gen != null ? gen.rows.size() : 0;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getBuilds() {
+        return builds.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * The generation for the current policies and the given indices, null if the indices
+     * are older than the ones the matrix is built for, no policies were downloaded yet or
+     * another thread is just starting a generation.
+     */
+    private Generation currentGeneration(RangerIndexSets.Ordinals ordinals) {
+        Generation gen = generation;
+        long changes = contextChanges.get();
+        ServicePolicies servicePolicies = rangerPlugin.getServicePolicies();
+        RangerAuthContext authContext = rangerPlugin.getCurrentRangerAuthContext();
+
+        if (gen != null && gen.ordinals == ordinals && gen.contextChanges == changes
+                && gen.servicePolicies == servicePolicies && gen.authContext == authContext) {
+            return gen;
+        }
+        if (servicePolicies == null || authContext == null || (gen != null && ordinals.getVersion() < gen.ordinals.getVersion())) {
+            return null;
+        }
+
+        synchronized (this) {
+            if (generation != gen) {
+                return null;
+            }
+
+            Generation current = new Generation(ordinals, changes, servicePolicies, authContext);
+            generation = current;
+
+            if (gen != null) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Ranger policies or indices changed, rebuilding {} permission matrix rows", gen.rows.size());
+                }
+                for (RowKey key : gen.rows.keySet()) {
+                    schedule(current, key);
+                }
+            }
+            return current;
+        }
+    }
+
+    private void schedule(final Generation gen, final RowKey key) {
+        if (gen.rows.size() + gen.pending.size() >= maxRows || !gen.pending.add(key)) {
+            return;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    if (generation == gen) {
+                        Row row = computeRow(gen, key);
+                        builds.incrementAndGet();
+                        gen.rows.put(key, row);
+                    }
+                } catch (RuntimeException e) {
+                    // a policy refresh cleans up the auth context while we may still be using it
+                    log.debug("Unable to build the permission matrix row of {} for {}", key.user, key.accessType, e);
+                } finally {
+                    gen.pending.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            gen.pending.remove(key);
+            dropped.incrementAndGet();
+        }
+    }
+
+    private Row computeRow(Generation gen, RowKey key) {
+        if (!isRepresentable(gen.servicePolicies, key)) {
+            return UNREPRESENTABLE;
+        }
+
+        List<Decision> decisions = new ArrayList<Decision>();
+        List<BitSet> decisionOrdinals = new ArrayList<BitSet>();
+        BitSet allowed = new BitSet(gen.ordinals.size());
+
+        RangerAccessRequestImpl request = new RangerAccessRequestImpl();
+        RangerAccessResourceImpl resource = new RangerAccessResourceImpl();
+        request.setResource(resource);
+        request.setUser(key.user);
+        request.setUserGroups(key.groups);
+        request.setAccessType(key.accessType);
+        request.setAction(key.accessType);
+        request.setAccessTime(new Date());
+        if (!Strings.isNullOrEmpty(clusterName)) {
+            request.setClusterName(clusterName);
+        }
+
+        for (int i = 0; i < gen.ordinals.size(); i++) {
+            resource.setValue("index", gen.ordinals.name(i));
+            RangerAccessResult result = gen.authContext.isAccessAllowed(request, null);
+            if (result == null) {
+                continue;
+            }
+
+            Decision decision = new Decision(result.getIsAccessDetermined(), result.getIsAllowed(),
+                    result.getIsAudited(), result.getPolicyId());
+            int d = decisions.indexOf(decision);
+            if (d < 0) {
+                d = decisions.size();
+                decisions.add(decision);
+                decisionOrdinals.add(new BitSet(gen.ordinals.size()));
+            }
+            decisionOrdinals.get(d).set(i);
+            if (decision.allowed) {
+                allowed.set(i);
+            }
+        }
+
+        return new Row(allowed, decisions.toArray(new Decision[decisions.size()]),
+                decisionOrdinals.toArray(new BitSet[decisionOrdinals.size()]));
+    }
+
+    /**
+     * Whether the user's decisions depend on nothing but the index, that is whether no
+     * tag policy and no policy with conditions or validity schedules applies to the user.
+     */
+    private static boolean isRepresentable(ServicePolicies servicePolicies, RowKey key) {
+        if (servicePolicies.getPolicies() != null) {
+            for (RangerPolicy policy : servicePolicies.getPolicies()) {
+                boolean scheduled = policy.getValiditySchedules() != null && !policy.getValiditySchedules().isEmpty();
+                if (!Boolean.FALSE.equals(policy.getIsEnabled()) && hasItem(policy, key, scheduled)) {
+                    return false;
+                }
+            }
+        }
+
+        ServicePolicies.TagPolicies tagPolicies = servicePolicies.getTagPolicies();
+        if (tagPolicies != null && tagPolicies.getPolicies() != null) {
+            for (RangerPolicy policy : tagPolicies.getPolicies()) {
+                if (!Boolean.FALSE.equals(policy.getIsEnabled()) && hasItem(policy, key, true)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether an item of the policy applies to the user, only counting items with
+     * conditions unless any is set.
+     */
+    private static boolean hasItem(RangerPolicy policy, RowKey key, boolean any) {
+        return hasItem(policy.getPolicyItems(), key, any) || hasItem(policy.getDenyPolicyItems(), key, any)
+                || hasItem(policy.getAllowExceptions(), key, any) || hasItem(policy.getDenyExceptions(), key, any);
+    }
+
+    private static boolean hasItem(List<? extends RangerPolicy.RangerPolicyItem> items, RowKey key, boolean any) {
+        if (items != null) {
+            for (RangerPolicy.RangerPolicyItem item : items) {
+                if ((any || (item.getConditions() != null && !item.getConditions().isEmpty()))
+                        && RangerIndexPruner.matchesUser(item, key.user, key.groups)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void replay(RangerAccessRequestImpl request, RangerAccessResourceImpl resource, RangerIndexSet set, Row row) {
+        RangerAccessResultProcessor resultProcessor = rangerPlugin.getResultProcessor();
+        if (resultProcessor == null) {
+            return;
+        }
+
+        for (int i = set.nextOrdinal(0); i >= 0; i = set.nextOrdinal(i + 1)) {
+            Decision decision = row.decisionOf(i);
+            resource.setValue("index", set.getOrdinals().name(i));
+
+            RangerAccessResult result = new RangerAccessResult(RangerPolicy.POLICY_TYPE_ACCESS, rangerPlugin.getServiceName(),
+                    rangerPlugin.getServiceDef(), request);
+            result.setIsAccessDetermined(decision.determined);
+            result.setIsAllowed(decision.allowed);
+            result.setIsAudited(decision.audited);
+            result.setPolicyId(decision.policyId);
+            resultProcessor.processResult(result);
+        }
+    }
+
+    private static final class Generation {
+        final RangerIndexSets.Ordinals ordinals;
+        final long contextChanges;
+        final ServicePolicies servicePolicies;
+        final RangerAuthContext authContext;
+        final ConcurrentHashMap<RowKey, Row> rows = new ConcurrentHashMap<RowKey, Row>();
+        final Set<RowKey> pending = ConcurrentHashMap.newKeySet();
+
+        Generation(RangerIndexSets.Ordinals ordinals, long contextChanges, ServicePolicies servicePolicies, RangerAuthContext authContext) {
+            this.ordinals = ordinals;
+            this.contextChanges = contextChanges;
+            this.servicePolicies = servicePolicies;
+            this.authContext = authContext;
+        }
+    }
+
+    private static final class Row {
+        final BitSet allowed;
+        // the distinct decisions of the row and the ordinals of the indices with each of them
+        final Decision[] decisions;
+        final BitSet[] decisionOrdinals;
+
+        Row(BitSet allowed, Decision[] decisions, BitSet[] decisionOrdinals) {
+            this.allowed = allowed;
+            this.decisions = decisions;
+            this.decisionOrdinals = decisionOrdinals;
+        }
+
+        Decision decisionOf(int ordinal) {
+            for (int d = 0; d < decisions.length; d++) {
+                if (decisionOrdinals[d].get(ordinal)) {
+                    return decisions[d];
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class RowKey {
+        final String user;
+        final Set<String> groups;
+        final String accessType;
+        final int hash;
+
+        RowKey(String user, Set<String> groups, String accessType) {
+            this.user = user;
+            this.groups = groups != null ? groups : Collections.<String>emptySet();
+            this.accessType = accessType;
+            this.hash = Objects.hash(user, this.groups, accessType);
+        }
+
+        // the request's group set is not ours to keep
+        RowKey copy() {
+            return new RowKey(user, Collections.unmodifiableSet(new HashSet<String>(groups)), accessType);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof RowKey)) {
+                return false;
+            }
+            RowKey other = (RowKey) o;
+            return hash == other.hash && Objects.equals(user, other.user) && Objects.equals(accessType, other.accessType)
+                    && groups.equals(other.groups);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Decision {
+        final boolean determined;
+        final boolean allowed;
+        final boolean audited;
+        final long policyId;
+
+        Decision(boolean determined, boolean allowed, boolean audited, long policyId) {
+            this.determined = determined;
+            this.allowed = allowed;
+            this.audited = audited;
+            this.policyId = policyId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Decision)) {
+                return false;
+            }
+            Decision other = (Decision) o;
+            return determined == other.determined && allowed == other.allowed && audited == other.audited
+                    && policyId == other.policyId;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(determined, allowed, audited, policyId);
+        }
+    }
+}
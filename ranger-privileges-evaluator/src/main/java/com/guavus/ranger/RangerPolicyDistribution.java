@@ -0,0 +1,179 @@
+/*
+ * Copyright 2020 ThalesGroup
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.guavus.ranger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.ClusterStateUpdateTask;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.Priority;
+import org.elasticsearch.gateway.GatewayService;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets only the elected master node poll Ranger admin for policy changes.
+ *
+ * The master publishes the version of the policies it downloaded in the custom metadata
+ * of the security config index, which Elasticsearch sends to every node with the cluster
+ * state. The other nodes download the policies from Ranger admin only once a version
+ * other than theirs is published, and poll Ranger admin as before while none is or while the
+ * node has no recovered cluster state. The policies themselves never enter the
+ * cluster state.
+ */
+public class RangerPolicyDistribution {
+
+    protected final Logger log = LogManager.getLogger(this.getClass());
+
+    static final String CUSTOM_METADATA_KEY = "ranger_policies";
+    private static final String FIELD_SERVICE = "service";
+    private static final String FIELD_VERSION = "version";
+
+    private static volatile RangerPolicyDistribution instance = null;
+
+    private final ClusterService clusterService;
+    private final String indexName;
+
+    private final AtomicLong publications = new AtomicLong();
+    private final AtomicLong publicationFailures = new AtomicLong();
+    private final AtomicLong triggeredDownloads = new AtomicLong();
+    private final AtomicLong fallbackDownloads = new AtomicLong();
+
+    public RangerPolicyDistribution(ClusterService clusterService, String indexName) {
+        this.clusterService = clusterService;
+        this.indexName = indexName;
+    }
+
+    /**
+     * Makes the distribution available to the policy source of the plugin, which Ranger
+     * instantiates itself.
+     */
+    public static void install(RangerPolicyDistribution distribution) {
+        instance = distribution;
+    }
+
+    /**
+     * The installed distribution, null if policies are not distributed.
+     */
+    public static RangerPolicyDistribution getInstance() {
+        return instance;
+    }
+
+    /**
+     * Whether this node polls Ranger admin for the cluster.
+     */
+    public boolean isLeader() {
+        ClusterState state = recoveredState();
+        return state != null && state.nodes().isLocalNodeElectedMaster();
+    }
+
+    /**
+     * The published policy version of the service, null if none is published or the
+     * cluster state is not recovered yet.
+     */
+    public Long getPublishedVersion(String serviceName) {
+        ClusterState state = recoveredState();
+        if (state == null) {
+            return null;
+        }
+        IndexMetaData index = state.metaData().index(indexName);
+        Map<String, String> published = index != null ? index.getCustomData(CUSTOM_METADATA_KEY) : null;
+        return published != null && serviceName.equals(published.get(FIELD_SERVICE))
+                ? Long.valueOf(published.get(FIELD_VERSION)) : null;
+    }
+
+    /**
+     * Publishes the policy version of the service to the other nodes.
+     */
+    public void publish(final String serviceName, final long version) {
+        final Map<String, String> published = new HashMap<String, String>();
+        published.put(FIELD_SERVICE, serviceName);
+        published.put(FIELD_VERSION, Long.toString(version));
+
+        clusterService.submitStateUpdateTask("ranger-publish-policy-version", new ClusterStateUpdateTask(Priority.NORMAL) {
+            @Override
+            public ClusterState execute(ClusterState currentState) {
+                IndexMetaData index = currentState.metaData().index(indexName);
+                if (index == null) {
+                    throw new IllegalStateException("index " + indexName + " does not exist");
+                }
+                if (published.equals(index.getCustomData(CUSTOM_METADATA_KEY))) {
+                    return currentState;
+                }
+
+                IndexMetaData.Builder builder = IndexMetaData.builder(index)
+                        .putCustom(CUSTOM_METADATA_KEY, published)
+                        .version(index.getVersion() + 1);
+
+                return ClusterState.builder(currentState)
+                        .metaData(MetaData.builder(currentState.metaData()).put(builder))
+                        .build();
+            }
+
+            @Override
+            public void onFailure(String source, Exception e) {
+                publicationFailures.incrementAndGet();
+                log.warn("Unable to publish version " + version + " of the policies of service " + serviceName, e);
+            }
+
+            @Override
+            public void clusterStateProcessed(String source, ClusterState oldState, ClusterState newState) {
+                if (newState == oldState) {
+                    return;
+                }
+                publications.incrementAndGet();
+                if (log.isDebugEnabled()) {
+                    log.debug("Published version " + version + " of the policies of service " + serviceName);
+                }
+            }
+        });
+    }
+
+    void recordTriggeredDownload() {
+        triggeredDownloads.incrementAndGet();
+    }
+
+    void recordFallbackDownload() {
+        fallbackDownloads.incrementAndGet();
+    }
+
+    public long getPublications() {
+        return publications.get();
+    }
+
+    public long getPublicationFailures() {
+        return publicationFailures.get();
+    }
+
+    public long getTriggeredDownloads() {
+        return triggeredDownloads.get();
+    }
+
+    public long getFallbackDownloads() {
+        return fallbackDownloads.get();
+    }
+
+    // null until the node applied a recovered cluster state, e.g. while it joins the cluster
+    private ClusterState recoveredState() {
+        ClusterState state = clusterService.state();
+        return state != null && !state.blocks().hasGlobalBlock(GatewayService.STATE_NOT_RECOVERED_BLOCK) ? state : null;
+    }
+}
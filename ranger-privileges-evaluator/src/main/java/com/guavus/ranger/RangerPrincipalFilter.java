@@ -0,0 +1,206 @@
+/*
+ * Copyright 2020 ThalesGroup
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.guavus.ranger;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.ranger.plugin.model.RangerPolicy;
+import org.apache.ranger.plugin.policyengine.RangerAccessRequest;
+import org.apache.ranger.plugin.policyengine.RangerAccessResult;
+import org.apache.ranger.plugin.policyengine.RangerAccessResultProcessor;
+import org.apache.ranger.plugin.policyengine.RangerPolicyEngine;
+import org.apache.ranger.plugin.util.ServicePolicies;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds users no policy grants anything to, through them or any of their groups,
+ * without asking the policy engine.
+ *
+ * The users and groups of the allow items of all enabled resource and tag access
+ * policies are put in a Bloom filter once per policy download. A user absent from it
+ * along with all its groups is certainly denied by the engine on every index and on
+ * _all; false positives only mean the engine is asked. Nothing is filtered while an
+ * allow item names public or a user macro, since those apply to any user.
+ */
+public class RangerPrincipalFilter {
+
+    protected final Logger log = LogManager.getLogger(this.getClass());
+
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
+    private final RangerElasticsearchPlugin rangerPlugin;
+    private volatile Generation generation = new Generation(null, null, null, 0);
+    private final AtomicLong denied = new AtomicLong();
+
+    public RangerPrincipalFilter(RangerElasticsearchPlugin rangerPlugin) {
+        this.rangerPlugin = rangerPlugin;
+    }
+
+    /**
+     * Whether no policy can grant anything to the user or its groups, false if the
+     * policies are not known yet.
+     */
+    public boolean isUngranted(String user, Set<String> groups) {
+        Generation gen = currentGeneration();
+        if (gen.users == null) {
+            return false;
+        }
+        if (user != null && gen.users.mightContain(user)) {
+            return false;
+        }
+        if (groups != null) {
+            for (String group : groups) {
+                if (group != null && gen.groups.mightContain(group)) {
+                    return false;
+                }
+            }
+        }
+        denied.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Passes the denial of the request to the plugin's result processor, as the engine
+     * would have.
+     */
+    public void auditDenial(RangerAccessRequest request) {
+        RangerAccessResultProcessor resultProcessor = rangerPlugin.getResultProcessor();
+        if (resultProcessor == null) {
+            return;
+        }
+
+        ServicePolicies servicePolicies = generation.servicePolicies;
+        RangerAccessResult result = new RangerAccessResult(RangerPolicy.POLICY_TYPE_ACCESS, rangerPlugin.getServiceName(),
+                rangerPlugin.getServiceDef(), request);
+        result.setIsAccessDetermined(true);
+        result.setIsAllowed(false);
+        result.setIsAudited(servicePolicies == null || !RangerPolicyEngine.AUDIT_NONE.equals(servicePolicies.getAuditMode()));
+        resultProcessor.processResult(result);
+    }
+
+    public long getDenied() {
+        return denied.get();
+    }
+
+    /**
+     * Number of users and groups in the filter, -1 if nothing is filtered.
+     */
+    public int getPrincipals() {
+        Generation gen = generation;
+        return gen.users != null ? gen.principals : -1;
+    }
+
+    private Generation currentGeneration() {
+        Generation gen = generation;
+        ServicePolicies servicePolicies = rangerPlugin.getServicePolicies();
+
+        if (gen.servicePolicies != servicePolicies) {
+            synchronized (this) {
+                gen = generation;
+                if (gen.servicePolicies != servicePolicies) {
+                    gen = build(servicePolicies);
+                    generation = gen;
+                }
+            }
+        }
+
+        return gen;
+    }
+
+    private Generation build(ServicePolicies servicePolicies) {
+        if (servicePolicies == null) {
+            return new Generation(null, null, null, 0);
+        }
+
+        List<RangerPolicy> policies = new ArrayList<RangerPolicy>();
+        if (servicePolicies.getPolicies() != null) {
+            policies.addAll(servicePolicies.getPolicies());
+        }
+        if (servicePolicies.getTagPolicies() != null && servicePolicies.getTagPolicies().getPolicies() != null) {
+            policies.addAll(servicePolicies.getTagPolicies().getPolicies());
+        }
+
+        Set<String> users = new HashSet<String>();
+        Set<String> groups = new HashSet<String>();
+
+        for (RangerPolicy policy : policies) {
+            if (!RangerIndexPruner.isEnabledAccessPolicy(policy) || policy.getPolicyItems() == null) {
+                continue;
+            }
+            for (RangerPolicy.RangerPolicyItem item : policy.getPolicyItems()) {
+                if (item.getUsers() != null) {
+                    for (String user : item.getUsers()) {
+                        // {USER} style macros match any user
+                        if (user != null && user.indexOf('{') >= 0) {
+                            log.debug("Policy " + policy.getId() + " grants to " + user + ", no user is filtered");
+                            return new Generation(servicePolicies, null, null, 0);
+                        }
+                        users.add(user);
+                    }
+                }
+                if (item.getGroups() != null) {
+                    for (String group : item.getGroups()) {
+                        if (RangerPolicyEngine.GROUP_PUBLIC.equals(group)) {
+                            log.debug("Policy " + policy.getId() + " grants to public, no user is filtered");
+                            return new Generation(servicePolicies, null, null, 0);
+                        }
+                        groups.add(group);
+                    }
+                }
+            }
+        }
+        users.remove(null);
+        groups.remove(null);
+
+        BloomFilter<CharSequence> userFilter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8),
+                Math.max(1, users.size()), FALSE_POSITIVE_RATE);
+        for (String user : users) {
+            userFilter.put(user);
+        }
+        BloomFilter<CharSequence> groupFilter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8),
+                Math.max(1, groups.size()), FALSE_POSITIVE_RATE);
+        for (String group : groups) {
+            groupFilter.put(group);
+        }
+
+        log.debug("Built the principal filter of policy version " + servicePolicies.getPolicyVersion() + " over "
+                + users.size() + " users and " + groups.size() + " groups");
+        return new Generation(servicePolicies, userFilter, groupFilter, users.size() + groups.size());
+    }
+
+    private static final class Generation {
+        final ServicePolicies servicePolicies;
+        // null when nothing is filtered
+        final BloomFilter<CharSequence> users;
+        final BloomFilter<CharSequence> groups;
+        final int principals;
+
+        Generation(ServicePolicies servicePolicies, BloomFilter<CharSequence> users, BloomFilter<CharSequence> groups, int principals) {
+            this.servicePolicies = servicePolicies;
+            this.users = users;
+            this.groups = groups;
+            this.principals = principals;
+        }
+    }
+}
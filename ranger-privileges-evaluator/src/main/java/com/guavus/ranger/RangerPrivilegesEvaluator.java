@@ -35,9 +35,6 @@ import org.apache.logging.log4j.Logger;
 import org.apache.ranger.audit.provider.MiscUtil;
 import org.apache.ranger.authorization.hadoop.config.RangerConfiguration;
 import org.apache.ranger.plugin.audit.RangerDefaultAuditHandler;
-import org.apache.ranger.plugin.policyengine.RangerAccessRequestImpl;
-import org.apache.ranger.plugin.policyengine.RangerAccessResourceImpl;
-import org.apache.ranger.plugin.policyengine.RangerAccessResult;
 import org.apache.ranger.plugin.service.RangerBasePlugin;
 import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.ElasticsearchSecurityException;
@@ -67,9 +64,15 @@ import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.TransportAddress;
 import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.index.Index;
 import org.elasticsearch.index.reindex.ReindexAction;
 import org.elasticsearch.index.reindex.ReindexRequest;
+import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.tasks.Task;
 import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.transport.RemoteClusterAware;
@@ -79,12 +82,17 @@ import sun.security.krb5.KrbException;
 
 import javax.security.auth.login.LoginException;
 import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -94,7 +102,7 @@ import java.util.stream.Collectors;
 public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
 
     protected final Logger log = LogManager.getLogger(this.getClass());
-    private static final Set<String> NULL_SET = Sets.newHashSet((String)null);
+    private static final String[] ALL_INDICES_EXPRESSION = new String[] {"*"};
     private final static IndicesOptions DEFAULT_INDICES_OPTIONS = IndicesOptions.lenientExpandOpen();
     private static final Set<String> NO_INDICES_SET = Sets.newHashSet("\\",";",",","/","|");
     private static final String CONFIG_FILES_PATH_PREFIX = "/etc/elasticsearch/";
@@ -107,6 +115,49 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
 
     private static final String CLUSTER_NAME = "cluster.name";
 
+    // decision cache, see RangerDecisionCache
+    private static final String DECISION_CACHE_ENABLED = "opendistro_security.ranger.decision_cache.enabled";
+    private static final String DECISION_CACHE_MAX_ENTRIES = "opendistro_security.ranger.decision_cache.max_entries";
+    private static final int DEFAULT_DECISION_CACHE_MAX_ENTRIES = 100000;
+    // skip the index checks of large requests on indices no policy grants on, see RangerIndexPruner
+    private static final String PRUNING_ENABLED = "opendistro_security.ranger.pruning.enabled";
+    private static final String PRUNING_MIN_INDICES = "opendistro_security.ranger.pruning.min_indices";
+    private static final int DEFAULT_PRUNING_MIN_INDICES = 16;
+    // precomputed decisions of known users, see RangerPermissionMatrix
+    private static final String PERMISSION_MATRIX_ENABLED = "opendistro_security.ranger.permission_matrix.enabled";
+    private static final String PERMISSION_MATRIX_MAX_ROWS = "opendistro_security.ranger.permission_matrix.max_rows";
+    private static final int DEFAULT_PERMISSION_MATRIX_MAX_ROWS = 1000;
+    // concurrent identical checks share one evaluation, see RangerCheckCoalescer
+    private static final String COALESCING_ENABLED = "opendistro_security.ranger.coalescing.enabled";
+    // deny users no policy grants anything to without evaluation, see RangerPrincipalFilter
+    private static final String PRINCIPAL_FILTER_ENABLED = "opendistro_security.ranger.principal_filter.enabled";
+    // only the elected master polls Ranger admin for policies, see RangerPolicyDistribution
+    private static final String POLICY_DISTRIBUTION_ENABLED = "opendistro_security.ranger.policy_distribution.enabled";
+    // fraction of authorization checks replayed on the uncached path, see RangerShadowEvaluator
+    private static final String SHADOW_SAMPLE_RATE = "opendistro_security.ranger.shadow.sample_rate";
+    // per-stage timing of evaluate(), see RangerEvaluationMetrics
+    private static final String METRICS_ENABLED = "opendistro_security.ranger.metrics.enabled";
+    // evaluations slower than this are logged with their stage timings, negative to disable
+    private static final String SLOWLOG_THRESHOLD_MS = "opendistro_security.ranger.slowlog.threshold_ms";
+    // how often the evaluator stats are logged, off by default
+    private static final String STATS_LOG_INTERVAL_SEC = "opendistro_security.ranger.stats.log_interval_sec";
+    private static final long DEFAULT_STATS_LOG_INTERVAL_SEC = 0;
+
+    // bootstrap the Ranger plugin off the injection thread, rejecting requests until it is ready, off by default so a failed bootstrap still fails the node
+    private static final String BOOTSTRAP_ASYNC = "opendistro_security.ranger.bootstrap.async";
+    // how long a request may wait for a bootstrap in progress before being rejected
+    private static final String BOOTSTRAP_WAIT_MS = "opendistro_security.ranger.bootstrap.wait_ms";
+    // renew the TGT of the evaluator UGI in the background, see KerberosTicketRenewer
+    private static final String KERBEROS_RENEWAL_ENABLED = "opendistro_security.ranger.kerberos.renewal.enabled";
+    // JDK Kerberos debug output, very verbose, for troubleshooting only
+    private static final String KERBEROS_DEBUG = "opendistro_security.ranger.kerberos.debug";
+    // authorize each item of multi search / multi get on its own instead of the whole request
+    private static final String MULTI_REQUEST_PER_ITEM = "opendistro_security.ranger.multi_request.per_item";
+    // name denied items are pointed at, ES rejects '#' in both index and alias names so it can never exist
+    private static final String DENIED_INDEX_PLACEHOLDER = "#RANGER_ACCESS_DENIED";
+    private static final String RANGER_AUDIT_XML = "ranger-elasticsearch-audit.xml";
+    private static final String RANGER_AUDIT_HDFS_DESTINATION = "xasecure.audit.destination.hdfs";
+
     protected final Logger actionTrace = LogManager.getLogger("opendistro_security_action_trace");
     private final ClusterService clusterService;
 
@@ -127,14 +178,21 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
 
     //private final boolean typeSecurityDisabled = false;
     private final ConfigModel configModel;
-    private final IndexResolverReplacer irr;
     private final Map<Class<?>, Method> typeCache = Collections.synchronizedMap(new HashMap<Class<?>, Method>(100));
     private final Map<Class<?>, Method> typesCache = Collections.synchronizedMap(new HashMap<Class<?>, Method>(100));
+    private final RangerIndexSets indexSets = new RangerIndexSets();
 
     private static RangerBasePlugin rangerPlugin = null;
-    private boolean initUGI = false;
-    private boolean isInitialised = false;
+    private static KerberosTicketRenewer ticketRenewer = null;
+    private volatile boolean initUGI = false;
+    private volatile boolean isInitialised = false;
     private String clusterName = null;
+    private volatile RangerAuthorizer authorizer = null;
+    private RangerEvaluationMetrics metrics = null;
+    private final CountDownLatch bootstrapDone = new CountDownLatch(1);
+    private volatile Throwable bootstrapFailure = null;
+    private long bootstrapWaitMs = 0;
+    private boolean multiRequestPerItem = false;
 
     @Inject
     public RangerPrivilegesEvaluator(final ClusterService clusterService, final ThreadPool threadPool,
@@ -154,7 +212,6 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
         configModel = new ConfigModel(ah);
         configurationRepository.subscribeOnChange("roles", configModel);
         configurationRepository.subscribeOnChange("rolesmapping", this);
-        this.irr = irr;
 
         snapshotRestoreEvaluator = new SnapshotRestoreEvaluator(settings, auditLog);
         securityIndexAccessEvaluator = new OpenDistroSecurityIndexAccessEvaluator(settings, auditLog);
@@ -176,26 +233,159 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
 
         log.debug("RANGER_ES_PLUGIN_APP_ID: " + RANGER_ES_PLUGIN_APP_ID);
 
+        bootstrapWaitMs = settings.getAsLong(BOOTSTRAP_WAIT_MS, 0L);
+        multiRequestPerItem = settings.getAsBoolean(MULTI_REQUEST_PER_ITEM, false);
+
+        if (settings.getAsBoolean(METRICS_ENABLED, true)) {
+            metrics = new RangerEvaluationMetrics(settings.getAsLong(SLOWLOG_THRESHOLD_MS, -1L));
+        }
+
+        long statsLogIntervalSec = settings.getAsLong(STATS_LOG_INTERVAL_SEC, DEFAULT_STATS_LOG_INTERVAL_SEC);
+        if (statsLogIntervalSec > 0) {
+            threadPool.scheduleWithFixedDelay(this::logStats, TimeValue.timeValueSeconds(statsLogIntervalSec), ThreadPool.Names.GENERIC);
+        }
+
+        if (settings.getAsBoolean(POLICY_DISTRIBUTION_ENABLED, false)) {
+            String configIndex = settings.get(ConfigConstants.OPENDISTRO_SECURITY_CONFIG_INDEX_NAME,
+                    ConfigConstants.OPENDISTRO_SECURITY_DEFAULT_CONFIG_INDEX);
+            RangerPolicyDistribution.install(new RangerPolicyDistribution(clusterService, configIndex));
+            log.info("Ranger policy distribution enabled, the elected master node polls Ranger admin and publishes the policy version in " + configIndex);
+        }
+
+        if (settings.getAsBoolean(BOOTSTRAP_ASYNC, false)) {
+            Thread bootstrapThread = new Thread(() -> {
+                try {
+                    bootstrap(settings);
+                } catch (Throwable t) {
+                    bootstrapFailure = t;
+                    log.error("Ranger plugin bootstrap failed, all requests will be rejected", t);
+                } finally {
+                    bootstrapDone.countDown();
+                }
+            }, "ranger-bootstrap");
+            bootstrapThread.setDaemon(true);
+            bootstrapThread.start();
+            log.info("RangerPrivilegesEvaluator loaded, Ranger plugin is bootstrapping in the background");
+        } else {
+            try {
+                bootstrap(settings);
+            } finally {
+                bootstrapDone.countDown();
+            }
+            log.info("RangerPrivilegesEvaluator successfully loaded");
+        }
+
+    }
+
+    /**
+     * Runs the keytab login and the classpath setup of the Ranger plugin in parallel,
+     * as neither needs the other, then initializes the plugin which needs both.
+     */
+    private void bootstrap(Settings settings) throws RangerPrivilegesEvaluatorException {
+        long start = System.currentTimeMillis();
+        String rangerResourcesPath = findRangerResourcesPath();
+
+        FutureTask<Boolean> ugiTask = new FutureTask<Boolean>(() -> initializeUGI(settings, rangerResourcesPath));
+        Thread ugiThread = new Thread(ugiTask, "ranger-bootstrap-ugi");
+        ugiThread.setDaemon(true);
+        ugiThread.start();
+
         try {
-            initializeUGI(settings);
+            addRangerResourcesToClasspath(settings, rangerResourcesPath);
         } catch (RangerPrivilegesEvaluatorException e) {
-            log.error("Unable to initialize ugi");
+            log.error("Unable to configure ranger plugin");
             throw e;
         }
 
         try {
-            configureRangerPlugin(settings);
+            ugiTask.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RangerPrivilegesEvaluatorException("Interrupted while initializing ugi", e);
+        } catch (ExecutionException e) {
+            log.error("Unable to initialize ugi");
+            if (e.getCause() instanceof RangerPrivilegesEvaluatorException) {
+                throw (RangerPrivilegesEvaluatorException) e.getCause();
+            }
+            throw new RangerPrivilegesEvaluatorException("Unable to initialize ugi: " + e.getCause(), e.getCause());
+        }
+
+        try {
+            initRangerPlugin();
         } catch (RangerPrivilegesEvaluatorException e) {
             log.error("Unable to configure ranger plugin");
             throw e;
         }
 
-        isInitialised = true;
-        log.info("RangerPrivilegesEvaluator successfully loaded");
+        int decisionCacheMaxEntries = 0;
+        if (settings.getAsBoolean(DECISION_CACHE_ENABLED, false)) {
+            decisionCacheMaxEntries = settings.getAsInt(DECISION_CACHE_MAX_ENTRIES, DEFAULT_DECISION_CACHE_MAX_ENTRIES);
+            log.info("Ranger decision cache enabled with at most " + decisionCacheMaxEntries + " entries");
+        }
+
+        double shadowSampleRate = settings.getAsDouble(SHADOW_SAMPLE_RATE, 0.0);
+        if (shadowSampleRate > 0) {
+            log.info("Ranger shadow evaluation enabled for " + shadowSampleRate + " of the authorization checks");
+        }
+
+        int pruningMinIndices = 0;
+        if (settings.getAsBoolean(PRUNING_ENABLED, false)) {
+            pruningMinIndices = Math.max(1, settings.getAsInt(PRUNING_MIN_INDICES, DEFAULT_PRUNING_MIN_INDICES));
+            log.info("Ranger index pruning enabled for requests on at least " + pruningMinIndices + " indices");
+        }
+
+        int permissionMatrixMaxRows = 0;
+        if (settings.getAsBoolean(PERMISSION_MATRIX_ENABLED, false)) {
+            permissionMatrixMaxRows = settings.getAsInt(PERMISSION_MATRIX_MAX_ROWS, DEFAULT_PERMISSION_MATRIX_MAX_ROWS);
+            log.info("Ranger permission matrix enabled with at most " + permissionMatrixMaxRows + " rows");
+        }
 
+        boolean coalescing = settings.getAsBoolean(COALESCING_ENABLED, false);
+        if (coalescing) {
+            log.info("Ranger coalescing of concurrent identical authorization checks enabled");
+        }
+
+        boolean principalFiltering = settings.getAsBoolean(PRINCIPAL_FILTER_ENABLED, false);
+        if (principalFiltering) {
+            log.info("Ranger principal filter enabled, users without any grant are denied without evaluating their checks");
+        }
+
+        authorizer = new RangerAuthorizer(rangerPlugin, clusterName, decisionCacheMaxEntries, shadowSampleRate, pruningMinIndices,
+                permissionMatrixMaxRows, coalescing, principalFiltering);
+
+        isInitialised = true;
+        log.info("Ranger plugin bootstrapped in " + (System.currentTimeMillis() - start) + " ms");
     }
 
     public void configureRangerPlugin(Settings settings) throws RangerPrivilegesEvaluatorException {
+        addRangerResourcesToClasspath(settings, findRangerResourcesPath());
+        initRangerPlugin();
+    }
+
+    /**
+     * The Ranger config files live in the resources directory next to the plugin jars,
+     * which are located through the kafka-clients jar on the plugin classpath.
+     */
+    private String findRangerResourcesPath() {
+        return AccessController.doPrivileged(new PrivilegedAction<String>() {
+            public String run() {
+                ClassLoader cl = org.apache.ranger.authorization.hadoop.config.RangerConfiguration.class.getClassLoader();
+                URL[] urls = ((URLClassLoader)cl).getURLs();
+                String pluginPath = null;
+                for(URL url: urls){
+                    String urlFile = url.getFile();
+                    //log.info("urlFile : " + urlFile);
+                    int idx = urlFile.indexOf("kafka-clients");
+                    if (idx != -1) {
+                        pluginPath = urlFile.substring(0, idx);
+                    }
+                }
+                return pluginPath + "resources/";
+            }
+        });
+    }
+
+    private void addRangerResourcesToClasspath(Settings settings, String rangerResourcesPath) throws RangerPrivilegesEvaluatorException {
         log.info("configureRangerPlugin");
 
         String svcType = settings.get(ConfigConstants.OPENDISTRO_AUTH_RANGER_SERVICE_TYPE, "elasticsearch");
@@ -209,7 +399,7 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
             synchronized(RangerPrivilegesEvaluator.class) {
                 me = rangerPlugin;
                 if (me == null) {
-                    me = rangerPlugin = new RangerBasePlugin(svcType, appId);
+                    me = rangerPlugin = new RangerElasticsearchPlugin(svcType, appId);
                 }
             }
         }
@@ -225,21 +415,10 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
         AccessController.doPrivileged(new PrivilegedAction() {
             public Object run() {
                 ClassLoader cl = org.apache.ranger.authorization.hadoop.config.RangerConfiguration.class.getClassLoader();
-                URL[] urls = ((URLClassLoader)cl).getURLs();
-                String pluginPath = null;
-                for(URL url: urls){
-                    String urlFile = url.getFile();
-                    //log.info("urlFile : " + urlFile);
-                    int idx = urlFile.indexOf("kafka-clients");
-                    if (idx != -1) {
-                        pluginPath = urlFile.substring(0, idx);
-                    }
-                }
 
                 try {
                     Method method = URLClassLoader.class.getDeclaredMethod("addURL", new Class[]{URL.class});
                     method.setAccessible(true);
-                    String rangerResourcesPath = pluginPath + "resources/";
                     log.debug("method = " + method);
                     method.invoke(cl, new Object[]{new File(rangerResourcesPath).toURI().toURL()});
                 } catch (Throwable e) {
@@ -249,7 +428,9 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
                 return null;
             }
         });
+    }
 
+    private void initRangerPlugin() throws RangerPrivilegesEvaluatorException {
         try {
             log.debug("ranger init");
             rangerPlugin.init();
@@ -270,7 +451,7 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
     }
 
     private boolean validateSettings(String keytabPrincipal, String keytabPath, String krbConf, String hadoopHomeDir,
-                                     String coreSiteXmlPath, String hdfsSiteXmlPath) {
+                                     String coreSiteXmlPath, String hdfsSiteXmlPath, boolean hdfsAuditEnabled) {
         if (Strings.isNullOrEmpty(keytabPrincipal)) {
             log.error("Kerberos principal is empty or null");
             return false;
@@ -283,7 +464,7 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
         }  else if (Strings.isNullOrEmpty(coreSiteXmlPath)) {
             log.error("core-site.xml filepath is empty or null");
             return false;
-        } else if (Strings.isNullOrEmpty(hdfsSiteXmlPath)) {
+        } else if (hdfsAuditEnabled && Strings.isNullOrEmpty(hdfsSiteXmlPath)) {
             log.error("hdfs-site.xml filepath is empty or null");
             return false;
         } else if (Strings.isNullOrEmpty(hadoopHomeDir)) {
@@ -293,7 +474,25 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
         return true;
     }
 
-    private boolean initializeUGI(Settings settings) throws RangerPrivilegesEvaluatorException {
+    /**
+     * hdfs-site.xml is only needed by the HDFS audit destination, so it is not loaded
+     * unless ranger-elasticsearch-audit.xml enables that destination.
+     */
+    private boolean isHdfsAuditEnabled(String rangerResourcesPath) {
+        return AccessController.doPrivileged(new PrivilegedAction<Boolean>() {
+            public Boolean run() {
+                File auditXml = new File(rangerResourcesPath, RANGER_AUDIT_XML);
+                if (!auditXml.exists()) {
+                    return false;
+                }
+                org.apache.hadoop.conf.Configuration auditConf = new org.apache.hadoop.conf.Configuration(false);
+                auditConf.addResource(new Path(auditXml.getAbsolutePath()));
+                return auditConf.getBoolean(RANGER_AUDIT_HDFS_DESTINATION, false);
+            }
+        });
+    }
+
+    private boolean initializeUGI(Settings settings, String rangerResourcesPath) throws RangerPrivilegesEvaluatorException {
         if (initUGI) {
             return true;
         }
@@ -304,11 +503,16 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
         String hadoopHomeDir = settings.get(ConfigConstants.OPENDISTRO_HADOOP_HOME_DIR);
         String coreSiteXmlPath = settings.get(ConfigConstants.OPENDISTRO_HADOOP_CORE_SITE_XML);
         String hdfsSiteXmlPath = settings.get(ConfigConstants.OPENDISTRO_HADOOP_HDFS_SITE_XML);
+        boolean krb5Debug = settings.getAsBoolean(KERBEROS_DEBUG, false);
+        boolean renewalEnabled = settings.getAsBoolean(KERBEROS_RENEWAL_ENABLED, true);
+
+        boolean hdfsAuditEnabled = isHdfsAuditEnabled(rangerResourcesPath);
 
         log.debug("keytabPath : " + keytabPath);
         log.debug ("krbConf : " + krbConf);
+        log.debug("hdfsAuditEnabled : " + hdfsAuditEnabled);
 
-        if (!validateSettings(keytabPrincipal, keytabPath, krbConf, hadoopHomeDir, coreSiteXmlPath, hdfsSiteXmlPath))
+        if (!validateSettings(keytabPrincipal, keytabPath, krbConf, hadoopHomeDir, coreSiteXmlPath, hdfsSiteXmlPath, hdfsAuditEnabled))
             throw new RangerPrivilegesEvaluatorException("Incorrect setting(s). Please check");
 
         log.debug("validated settings");
@@ -318,8 +522,9 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
                 System.setProperty("java.security.krb5.conf", krbConf);
                 System.setProperty("kerberos.client.enabled","true");
                 System.setProperty("hadoop.home.dir",hadoopHomeDir);
-                System.setProperty("sun.security.util.debug enable", "true");
-                System.setProperty("sun.security.krb5.debug", "true");
+                if (krb5Debug) {
+                    System.setProperty("sun.security.krb5.debug", "true");
+                }
                 System.setProperty("hadoop.security.authentication","kerberos");
                 try {
                     Config.refresh();
@@ -343,13 +548,19 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
                         log.debug("loginUserFromKeytab");
                         org.apache.hadoop.conf.Configuration conf = new  org.apache.hadoop.conf.Configuration();
                         conf.addResource(new Path(coreSiteXmlPath));
-                        conf.addResource(new Path(hdfsSiteXmlPath));
-                        conf.set("fs.hdfs.impl",org.apache.hadoop.hdfs.DistributedFileSystem.class.getName());
-                        conf.set("fs.file.impl", org.apache.hadoop.fs.LocalFileSystem.class.getName());
+                        if (hdfsAuditEnabled) {
+                            conf.addResource(new Path(hdfsSiteXmlPath));
+                            conf.set("fs.hdfs.impl",org.apache.hadoop.hdfs.DistributedFileSystem.class.getName());
+                            conf.set("fs.file.impl", org.apache.hadoop.fs.LocalFileSystem.class.getName());
+                        }
                         UserGroupInformation.setConfiguration(conf);
                         UserGroupInformation ugi = UserGroupInformation.loginUserFromKeytabAndReturnUGI(keytabPrincipal, keytabPath);
                         MiscUtil.setUGILoginUser(ugi, null);
 
+                        if (renewalEnabled && ugi.isFromKeytab()) {
+                            startTicketRenewer(ugi);
+                        }
+
                         log.debug("isSecurityEnabled : " + UserGroupInformation.isSecurityEnabled());
                     } catch (Throwable t) {
                         throw new RangerPrivilegesEvaluatorException("Caught exception in getting UserGroupInformation. Please investigate: "
@@ -369,53 +580,40 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
         return initUGI;
     }
 
-    private boolean checkRangerAuthorization(final User user, TransportAddress caller, String accessType, Set<String> indices, String clusterLevelAccessType) {
-        boolean checkClusterLevelPermission = false;
-        Date eventTime = new Date();
-        String ipAddress = caller.address().getHostString();
-        RangerAccessRequestImpl rangerRequest = new RangerAccessRequestImpl();
-        rangerRequest.setUser(user.getName());
-
-        rangerRequest.setClientIPAddress(ipAddress);
-        rangerRequest.setAccessTime(eventTime);
-        RangerAccessResourceImpl rangerResource = new RangerAccessResourceImpl();
-        rangerRequest.setResource(rangerResource);
-        if (!Strings.isNullOrEmpty(clusterName)) {
-            rangerRequest.setClusterName(clusterName);
-        }
-        rangerRequest.setAccessType(accessType);
-        rangerRequest.setAction(accessType);
-        rangerRequest.setUserGroups(user.getRoles());
-
-        for (Iterator<String> it = indices.iterator(); it.hasNext();) {
-            String index = it.next();
-            log.debug("Checking for index: " + index + ", for user: " + user.getName() + " and accessType: " + accessType);
-            rangerResource.setValue("index", index);
-            RangerAccessResult result = rangerPlugin.isAccessAllowed(rangerRequest);
-            if (result == null || !(result.getIsAllowed())) {
-                if ((!index.equals("_all")) && (!index.equals("_cluster"))) {
-                    checkClusterLevelPermission = true;
-                } else {
-                    log.debug("Index/Cluster Permission denied");
-                    return false;
-                }
-            }
+    private static synchronized void startTicketRenewer(UserGroupInformation ugi) {
+        if (ticketRenewer != null) {
+            ticketRenewer.stop();
         }
-        if (checkClusterLevelPermission) {
-            log.debug("Checking all level permissions (_all), accessType: " + clusterLevelAccessType);
-            rangerResource.setValue("index", "_all");
-            rangerRequest.setAccessType(clusterLevelAccessType);
-            RangerAccessResult result = rangerPlugin.isAccessAllowed(rangerRequest);
-            if (result == null || !(result.getIsAllowed())) {
-                log.debug("All level Permission denied");
-                return false;
-            }
+        ticketRenewer = new KerberosTicketRenewer(ugi);
+        ticketRenewer.start();
+    }
+
+    private boolean checkRangerAuthorization(final User user, TransportAddress caller, String accessType, Set<String> indices, String clusterLevelAccessType) {
+        long start = System.nanoTime();
+        boolean allowed = authorizer.isAllowed(user, caller, accessType, indices, clusterLevelAccessType);
+
+        RangerEvaluationMetrics m = metrics;
+        if (m != null) {
+            m.record(RangerEvaluationMetrics.Stage.AUTHORIZE, start);
+            m.recordIndices(indices.size());
         }
-        return true;
+        return allowed;
     }
 
     private Tuple<Set<String>, Set<String>> resolveIndicesRequest(final User user, final String action, final IndicesRequest request,
                                                                   final MetaData metaData) {
+        final long start = System.nanoTime();
+        try {
+            return doResolveIndicesRequest(user, action, request, metaData);
+        } finally {
+            if (metrics != null) {
+                metrics.record(RangerEvaluationMetrics.Stage.RESOLVE_INDICES, start);
+            }
+        }
+    }
+
+    private Tuple<Set<String>, Set<String>> doResolveIndicesRequest(final User user, final String action, final IndicesRequest request,
+                                                                    final MetaData metaData) {
 
         if (log.isDebugEnabled()) {
             log.debug("Resolve {} from {} for action {}", request.indices(), request.getClass(), action);
@@ -491,15 +689,19 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
             log.debug("{} requestTypes {}", requestTypes.size(), requestTypes);
         }
 
-        final Set<String> indices = new HashSet<String>();
+        // plain expressions resolve to an interned set, date math and unresolvable ones are collected here
+        final ClusterState state = clusterService.state();
+        final RangerIndexSet.Builder indices = indexSets.builder(state.metaData());
+        RangerIndexSet resolved = null;
 
-        if(request.indices() == null || request.indices().length == 0 || new HashSet<String>(Arrays.asList(request.indices())).equals(NULL_SET)) {
+        if(request.indices() == null || request.indices().length == 0 || isNullSet(request.indices())) {
 
             if(log.isDebugEnabled()) {
                 log.debug("No indices found in request, assume _all");
             }
 
-            indices.addAll(Arrays.asList(resolver.concreteIndexNames(clusterService.state(), DEFAULT_INDICES_OPTIONS, "*")));
+            resolved = indexSets.resolve(state.metaData(), DEFAULT_INDICES_OPTIONS, ALL_INDICES_EXPRESSION,
+                    () -> resolver.concreteIndexNames(state, DEFAULT_INDICES_OPTIONS, "*"));
 
         } else {
 
@@ -508,7 +710,7 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
             if(request instanceof FieldCapabilitiesRequest || request instanceof SearchRequest) {
                 IndicesRequest.Replaceable searchRequest = (IndicesRequest.Replaceable) request;
                 final Map<String, OriginalIndices> remoteClusterIndices = OpenDistroSecurityPlugin.GuiceHolder.getRemoteClusterService()
-                        .groupIndices(searchRequest.indicesOptions(),searchRequest.indices(), idx -> resolver.hasIndexOrAlias(idx, clusterService.state()));
+                        .groupIndices(searchRequest.indicesOptions(),searchRequest.indices(), idx -> resolver.hasIndexOrAlias(idx, state));
 
                 if (remoteClusterIndices.size() > 1) {
                     // check permissions?
@@ -536,8 +738,12 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
                         log.debug("Date math indices detected {} (all: {})", dateMathIndices, localIndices);
                     }
 
+                    final long dateMathStart = System.nanoTime();
                     for(String dateMathIndex: dateMathIndices) {
-                        indices.addAll(Arrays.asList(resolver.resolveDateMathExpression(dateMathIndex)));
+                        indices.add(resolver.resolveDateMathExpression(dateMathIndex));
+                    }
+                    if (metrics != null) {
+                        metrics.record(RangerEvaluationMetrics.Stage.DATE_MATH, dateMathStart);
                     }
 
                     if(log.isDebugEnabled()) {
@@ -547,7 +753,7 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
                     if(localIndices.length > dateMathIndices.length) {
                         for(String nonDateMath: localIndices) {
                             if(!WildcardMatcher.match("<*>", nonDateMath)) {
-                                indices.addAll(Arrays.asList(resolver.concreteIndexNames(clusterService.state(), request.indicesOptions(), dateMathIndices)));
+                                indices.addAll(resolver.concreteIndexNames(state, request.indicesOptions(), dateMathIndices));
                             }
                         }
 
@@ -562,18 +768,29 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
                         log.debug("No date math indices found");
                     }
 
-                    indices.addAll(Arrays.asList(resolver.concreteIndexNames(clusterService.state(), request.indicesOptions(), localIndices)));
+                    final String[] expressions = localIndices;
+                    resolved = indexSets.resolve(state.metaData(), request.indicesOptions(), expressions,
+                            () -> resolver.concreteIndexNames(state, request.indicesOptions(), expressions));
                     if(log.isDebugEnabled()) {
-                        log.debug("Resolved {} to {}", localIndices, indices);
+                        log.debug("Resolved {} to {}", localIndices, resolved);
                     }
                 }
             } catch (final Exception e) {
                 log.debug("Cannot resolve {} (due to {}) so we use the raw values", Arrays.toString(localIndices), e);
-                indices.addAll(Arrays.asList(localIndices));
+                indices.addAll(localIndices);
             }
         }
 
-        return new Tuple<Set<String>, Set<String>>(indices, requestTypes);
+        return new Tuple<Set<String>, Set<String>>(resolved != null ? resolved : indices.build(), requestTypes);
+    }
+
+    private static boolean isNullSet(String[] indices) {
+        for (String index : indices) {
+            if (index != null) {
+                return false;
+            }
+        }
+        return true;
     }
 
     private Tuple<Set<String>, Set<String>> resolve(final User user, final String action, final TransportRequest request,
@@ -609,14 +826,15 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
             return new Tuple<Set<String>, Set<String>>(Sets.newHashSet("_all"), Sets.newHashSet("_all"));
         }
 
-        Set<String> indices = new HashSet<String>();
+        final RangerIndexSet.Builder indicesBuilder = indexSets.builder(metaData);
+        Set<String> indices = null;
         Set<String> types = new HashSet<String>();
 
         if (request instanceof IndicesAliasesRequest) {
 
             for(IndicesAliasesRequest.AliasActions ar: ((IndicesAliasesRequest) request).getAliasActions()) {
                 final Tuple<Set<String>, Set<String>> t = resolveIndicesRequest(user, action, ar, metaData);
-                indices.addAll(t.v1());
+                indicesBuilder.addAll(t.v1());
                 types.addAll(t.v2());
             }
 
@@ -625,7 +843,7 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
             if(request instanceof IndicesRequest) { //skip BulkShardRequest?
 
                 final Tuple<Set<String>, Set<String>> t = resolveIndicesRequest(user, action, (IndicesRequest) request, metaData);
-                indices.addAll(t.v1());
+                indicesBuilder.addAll(t.v1());
                 types.addAll(t.v2());
 
             } else if(request instanceof BulkRequest) {
@@ -637,7 +855,7 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
                     //ar.opType()
 
                     final Tuple<Set<String>, Set<String>> t = resolveIndicesRequest(user, action, (IndicesRequest) ar, metaData);
-                    indices.addAll(t.v1());
+                    indicesBuilder.addAll(t.v1());
                     types.addAll(t.v2());
                 }
 
@@ -645,7 +863,7 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
 
                 for(MultiGetRequest.Item item: ((MultiGetRequest) request).getItems()) {
                     final Tuple<Set<String>, Set<String>> t = resolveIndicesRequest(user, action, item, metaData);
-                    indices.addAll(t.v1());
+                    indicesBuilder.addAll(t.v1());
                     types.addAll(t.v2());
                 }
 
@@ -653,7 +871,7 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
 
                 for(ActionRequest ar: ((MultiSearchRequest) request).requests()) {
                     final Tuple<Set<String>, Set<String>> t = resolve(user, action, ar, metaData);
-                    indices.addAll(t.v1());
+                    indicesBuilder.addAll(t.v1());
                     types.addAll(t.v2());
                 }
 
@@ -661,7 +879,7 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
 
                 for(ActionRequest ar: (Iterable<TermVectorsRequest>) () -> ((MultiTermVectorsRequest) request).iterator()) {
                     final Tuple<Set<String>, Set<String>> t = resolve(user, action, ar, metaData);
-                    indices.addAll(t.v1());
+                    indicesBuilder.addAll(t.v1());
                     types.addAll(t.v2());
                 }
 
@@ -669,11 +887,11 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
             } else if(request instanceof ReindexRequest) {
                 ReindexRequest reindexRequest = (ReindexRequest) request;
                 Tuple<Set<String>, Set<String>> t = resolveIndicesRequest(user, action, reindexRequest.getDestination(), metaData);
-                indices.addAll(t.v1());
+                indicesBuilder.addAll(t.v1());
                 types.addAll(t.v2());
 
                 t = resolveIndicesRequest(user, action, reindexRequest.getSearchRequest(), metaData);
-                indices.addAll(t.v1());
+                indicesBuilder.addAll(t.v1());
                 types.addAll(t.v2());
             } else {
                 log.error("Can not handle composite request of type '"+request.getClass().getName()+"'for "+action+" here");
@@ -686,6 +904,10 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
             types = t.v2();
         }
 
+        if (indices == null) {
+            indices = indicesBuilder.build();
+        }
+
         if(log.isDebugEnabled()) {
             log.debug("pre final indices: {}", indices);
             log.debug("pre final types: {}", types);
@@ -696,15 +918,14 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
         }
 
         //for PutIndexTemplateRequest the index does not exists yet typically
-        if (IndexNameExpressionResolver.isAllIndices(new ArrayList<String>(indices))) {
+        if (indices.isEmpty() || (indices.size() == 1 && indices.contains(MetaData.ALL))) {
             if(log.isDebugEnabled()) {
                 log.debug("The following list are '_all' indices: {}", indices);
             }
 
             //fix https://github.com/floragunncom/search-guard/issues/332
             if(!indices.isEmpty()) {
-                indices.clear();
-                indices.add("_all");
+                indices = Collections.singleton(MetaData.ALL);
             }
         }
 
@@ -716,15 +937,33 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
             log.debug("final indices: {}", indices);
             log.debug("final types: {}", types);
         }
-        return new Tuple<Set<String>, Set<String>>(Collections.unmodifiableSet(indices), Collections.unmodifiableSet(types));
+        // indices are immutable at this point
+        return new Tuple<Set<String>, Set<String>>(indices, Collections.unmodifiableSet(types));
     }
 
     @Override
     public PrivilegesEvaluatorResponse evaluate(User user, String action, ActionRequest request, Task task) {
         if (!isInitialized()) {
-            throw new ElasticsearchSecurityException("RangerPrivilegesEvaluator is not initialized.");
+            awaitBootstrap();
         }
 
+        RangerEvaluationMetrics m = metrics;
+        if (m == null) {
+            return doEvaluate(user, action, request, task);
+        }
+
+        m.start();
+        PrivilegesEvaluatorResponse presponse = null;
+        try {
+            presponse = doEvaluate(user, action, request, task);
+            return presponse;
+        } finally {
+            m.finish(request.getClass(), action, user.getName(), presponse != null && presponse.allowed);
+        }
+    }
+
+    private PrivilegesEvaluatorResponse doEvaluate(User user, String action, ActionRequest request, Task task) {
+
         log.info("user roles : " + user.getRoles());
         log.info("user : " + user);
 
@@ -741,17 +980,14 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
             log.debug("action: "+action+" ("+request.getClass().getSimpleName()+")");
         }
 
-        if (rangerPlugin == null) {
+        if (rangerPlugin == null || authorizer == null) {
             log.error("Ranger Plugin not initialized");
             presponse.allowed = false;
             return presponse;
         }
 
-        final IndexResolverReplacer.Resolved requestedResolved = irr.resolveRequest(request);
-
-        if (log.isDebugEnabled()) {
-            log.debug("requestedResolved : {}", requestedResolved );
-        }
+        // indices are resolved once, by resolveIndicesRequest below, as Ranger policies are on concrete
+        // index names; the IndexResolverReplacer resolution of the request was never used
 
         final Settings config = getConfigSettings();
         log.debug("Action requested: " + action);
@@ -762,18 +998,19 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
 
         final ClusterState clusterState = clusterService.state();
         final MetaData metaData = clusterState.metaData();
+        final String accessType = accessTypeForRequest(action, request.getClass().getSimpleName());
 
         if (request instanceof BulkShardRequest) {
             log.debug("BulkShardRequest");
             final Tuple<Set<String>, Set<String>> t = resolveIndicesRequest(user, action, (IndicesRequest) request, metaData);
-            indices.addAll(t.v1());
+            indices = t.v1();
             types.addAll(t.v2());
-            allowAction = checkRangerAuthorization(user, caller, ACCESS_TYPE_WRITE, indices, ACCESS_TYPE_WRITE);
+            allowAction = checkRangerAuthorization(user, caller, accessType, indices, accessType);
             presponse.allowed = allowAction;
 
             if (!allowAction) {
-                presponse.missingPrivileges.add(String.join(",", indices) + " : " + ACCESS_TYPE_WRITE);
-                log.info("Permission denied for User: " + user.getName() + "Action: " + action + ", required permission : " + ACCESS_TYPE_WRITE + " , indices: " + String.join(",", indices));
+                presponse.missingPrivileges.add(String.join(",", indices) + " : " + accessType);
+                log.info("Permission denied for User: " + user.getName() + "Action: " + action + ", required permission : " + accessType + " , indices: " + String.join(",", indices));
             }
 
             return presponse;
@@ -815,18 +1052,20 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
         } else if (request instanceof IndicesAliasesRequest) {
             log.debug("IndicesAliasesRequest");
 
+            final RangerIndexSet.Builder indicesBuilder = indexSets.builder(metaData);
             for(IndicesAliasesRequest.AliasActions ar: ((IndicesAliasesRequest) request).getAliasActions()) {
                 final Tuple<Set<String>, Set<String>> t = resolveIndicesRequest(user, action, ar, metaData);
-                indices.addAll(t.v1());
+                indicesBuilder.addAll(t.v1());
                 types.addAll(t.v2());
             }
+            indices = indicesBuilder.build();
             //Add code for Ranger - Admin
-            allowAction = checkRangerAuthorization(user, caller, ACCESS_TYPE_ADMIN, indices, ACCESS_TYPE_ADMIN);
+            allowAction = checkRangerAuthorization(user, caller, accessType, indices, accessType);
             presponse.allowed = allowAction;
 
             if (!allowAction) {
-                presponse.missingPrivileges.add(String.join(",", indices) + " : " + ACCESS_TYPE_ADMIN);
-                log.info("Permission denied for User: " + user.getName() + " Action: " + action + ", required permission : " + ACCESS_TYPE_ADMIN + " , indices: " + String.join(",", indices));
+                presponse.missingPrivileges.add(String.join(",", indices) + " : " + accessType);
+                log.info("Permission denied for User: " + user.getName() + " Action: " + action + ", required permission : " + accessType + " , indices: " + String.join(",", indices));
             }
 
             return presponse;
@@ -838,7 +1077,7 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
                 log.debug("IndicesRequest");
 
                 final Tuple<Set<String>, Set<String>> t = resolveIndicesRequest(user, action, (IndicesRequest) request, metaData);
-                indices.addAll(t.v1());
+                indices = t.v1();
                 types.addAll(t.v2());
                 allowAction = checkRangerAuthorization(user, caller, ACCESS_TYPE_READ, indices, ACCESS_TYPE_READ);
                 presponse.allowed = allowAction;
@@ -853,6 +1092,7 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
             } else if((request instanceof BulkRequest) || (action.equals(BulkAction.NAME)) ) {
                 log.debug("BulkRequest");
 
+                final RangerIndexSet.Builder indicesBuilder = indexSets.builder(metaData);
                 for(DocWriteRequest<?> ar: ((BulkRequest) request).requests()) {
 
                     //TODO SG6 require also op type permissions
@@ -860,17 +1100,18 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
                     //ar.opType()
 
                     final Tuple<Set<String>, Set<String>> t = resolveIndicesRequest(user, action, (IndicesRequest) ar, metaData);
-                    indices.addAll(t.v1());
+                    indicesBuilder.addAll(t.v1());
                     types.addAll(t.v2());
                     //Add code for Ranger - write
 
                 }
-                allowAction = checkRangerAuthorization(user, caller, ACCESS_TYPE_WRITE, indices, ACCESS_TYPE_WRITE);
+                indices = indicesBuilder.build();
+                allowAction = checkRangerAuthorization(user, caller, accessType, indices, accessType);
                 presponse.allowed = allowAction;
 
                 if (!allowAction) {
-                    presponse.missingPrivileges.add(String.join(",", indices) + " : " + ACCESS_TYPE_WRITE);
-                    log.info("Permission denied for User: " + user.getName() + " Action: " + action + ", required permission : " + ACCESS_TYPE_WRITE + " , indices: " + String.join(",", indices));
+                    presponse.missingPrivileges.add(String.join(",", indices) + " : " + accessType);
+                    log.info("Permission denied for User: " + user.getName() + " Action: " + action + ", required permission : " + accessType + " , indices: " + String.join(",", indices));
                 }
 
                 return presponse;
@@ -878,18 +1119,24 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
             } else if((request instanceof MultiGetRequest) || (action.equals(MultiGetAction.NAME))) {
                 log.debug("MultiGetRequest");
 
+                if (multiRequestPerItem) {
+                    return evaluateMultiGetPerItem(user, caller, action, (MultiGetRequest) request, metaData, presponse);
+                }
+
+                final RangerIndexSet.Builder indicesBuilder = indexSets.builder(metaData);
                 for(MultiGetRequest.Item item: ((MultiGetRequest) request).getItems()) {
                     final Tuple<Set<String>, Set<String>> t = resolveIndicesRequest(user, action, item, metaData);
-                    indices.addAll(t.v1());
+                    indicesBuilder.addAll(t.v1());
                     types.addAll(t.v2());
                     //Add code for Ranger - READ
                 }
-                allowAction = checkRangerAuthorization(user, caller, ACCESS_TYPE_READ, indices, ACCESS_TYPE_READ);
+                indices = indicesBuilder.build();
+                allowAction = checkRangerAuthorization(user, caller, accessType, indices, accessType);
                 presponse.allowed = allowAction;
 
                 if (!allowAction) {
-                    presponse.missingPrivileges.add(String.join(",", indices) + " : " + ACCESS_TYPE_READ);
-                    log.info("Permission denied for User: " + user.getName() + " Action: " + action + ", required permission : " + ACCESS_TYPE_READ + " , indices: " + String.join(",", indices));
+                    presponse.missingPrivileges.add(String.join(",", indices) + " : " + accessType);
+                    log.info("Permission denied for User: " + user.getName() + " Action: " + action + ", required permission : " + accessType + " , indices: " + String.join(",", indices));
                 }
 
                 return presponse;
@@ -897,18 +1144,24 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
             } else if((request instanceof MultiSearchRequest) || (action.equals(MultiSearchAction.NAME))) {
                 log.debug("MultiSearchRequest");
 
+                if (multiRequestPerItem) {
+                    return evaluateMultiSearchPerItem(user, caller, action, (MultiSearchRequest) request, metaData, presponse);
+                }
+
+                final RangerIndexSet.Builder indicesBuilder = indexSets.builder(metaData);
                 for(ActionRequest ar: ((MultiSearchRequest) request).requests()) {
                     final Tuple<Set<String>, Set<String>> t = resolve(user, action, ar, metaData);
-                    indices.addAll(t.v1());
+                    indicesBuilder.addAll(t.v1());
                     types.addAll(t.v2());
                     //Add code for Ranger - READ
                 }
-                allowAction = checkRangerAuthorization(user, caller, ACCESS_TYPE_READ, indices, ACCESS_TYPE_READ);
+                indices = indicesBuilder.build();
+                allowAction = checkRangerAuthorization(user, caller, accessType, indices, accessType);
                 presponse.allowed = allowAction;
 
                 if (!allowAction) {
-                    presponse.missingPrivileges.add(String.join(",", indices) + " : " + ACCESS_TYPE_READ);
-                    log.info("Permission denied for User: " + user.getName() + " Action: " + action + ", required permission : " + ACCESS_TYPE_READ + " , indices: " + String.join(",", indices));
+                    presponse.missingPrivileges.add(String.join(",", indices) + " : " + accessType);
+                    log.info("Permission denied for User: " + user.getName() + " Action: " + action + ", required permission : " + accessType + " , indices: " + String.join(",", indices));
                 }
 
                 return presponse;
@@ -916,18 +1169,20 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
             } else if((request instanceof MultiTermVectorsRequest) || (action.equals(MultiTermVectorsAction.NAME))) {
                 log.debug("MultiTermVectorsRequest");
 
+                final RangerIndexSet.Builder indicesBuilder = indexSets.builder(metaData);
                 for(ActionRequest ar: (Iterable<TermVectorsRequest>) () -> ((MultiTermVectorsRequest) request).iterator()) {
                     final Tuple<Set<String>, Set<String>> t = resolve(user, action, ar, metaData);
-                    indices.addAll(t.v1());
+                    indicesBuilder.addAll(t.v1());
                     types.addAll(t.v2());
                     //Add code for Ranger - Read
                 }
-                allowAction = checkRangerAuthorization(user, caller, ACCESS_TYPE_READ, indices, ACCESS_TYPE_READ);
+                indices = indicesBuilder.build();
+                allowAction = checkRangerAuthorization(user, caller, accessType, indices, accessType);
                 presponse.allowed = allowAction;
 
                 if (!allowAction) {
-                    presponse.missingPrivileges.add(String.join(",", indices) + " : " + ACCESS_TYPE_READ);
-                    log.info("Permission denied for User: " + user.getName() + " Action: " + action + ", required permission : " + ACCESS_TYPE_READ + " , indices: " + String.join(",", indices));
+                    presponse.missingPrivileges.add(String.join(",", indices) + " : " + accessType);
+                    log.info("Permission denied for User: " + user.getName() + " Action: " + action + ", required permission : " + accessType + " , indices: " + String.join(",", indices));
                 }
 
                 return presponse;
@@ -937,8 +1192,7 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
 
                 ReindexRequest reindexRequest = (ReindexRequest) request;
                 Tuple<Set<String>, Set<String>> t = resolveIndicesRequest(user, action, reindexRequest.getDestination(), metaData);
-                indices.clear();
-                indices.addAll(t.v1());
+                indices = t.v1();
                 types.addAll(t.v2());
                 allowAction = checkRangerAuthorization(user, caller, ACCESS_TYPE_WRITE, indices, ACCESS_TYPE_WRITE);
                 if (!allowAction) {
@@ -949,8 +1203,7 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
                 }
 
                 t = resolveIndicesRequest(user, action, reindexRequest.getSearchRequest(), metaData);
-                indices.clear();
-                indices.addAll(t.v1());
+                indices = t.v1();
                 types.addAll(t.v2());
                 allowAction = checkRangerAuthorization(user, caller, ACCESS_TYPE_READ, indices, ACCESS_TYPE_READ);
                 presponse.allowed = allowAction;
@@ -973,19 +1226,53 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
         }
 
         log.debug("Action requested: " + action + " , indices: " + String.join(",", indices));
+        if (ACCESS_TYPE_ADMIN.equals(accessType) && !action.startsWith("indices:")) {
+            log.debug("All remaining unknown actions");
+            indices = Collections.singleton("_cluster");
+        }
+
+        allowAction = checkRangerAuthorization(user, caller, accessType, indices, accessType);
+        if (!allowAction) {
+            presponse.missingPrivileges.add(String.join(",", indices) + " : " + accessType);
+            log.info("Permission denied for User: " + user.getName() + " Action: " + action + ", required permission : " + accessType + " , indices: " + String.join(",", indices));
+        }
+
+        presponse.allowed = allowAction;
+        return presponse;
+
+    }
+
+    /**
+     * Access type required by a request, by the simple name of its class. Bulk requests require
+     * write, alias changes admin and multi requests read, whatever their action; any other request
+     * requires the access type of its action.
+     */
+    static String accessTypeForRequest(String action, String requestClass) {
+        switch (requestClass) {
+            case "BulkShardRequest":
+            case "BulkRequest":
+                return ACCESS_TYPE_WRITE;
+            case "IndicesAliasesRequest":
+                return ACCESS_TYPE_ADMIN;
+            case "MultiGetRequest":
+            case "MultiSearchRequest":
+            case "MultiTermVectorsRequest":
+                return ACCESS_TYPE_READ;
+            default:
+                return accessTypeForAction(action);
+        }
+    }
+
+    /**
+     * Access type required by an action that evaluate() has no request specific handling for.
+     * Unknown cluster actions require admin on _cluster, unknown index actions admin on the indices.
+     */
+    static String accessTypeForAction(String action) {
         if (action.startsWith("cluster:monitor/") || action.startsWith("indices:monitor/")) {
-            allowAction = checkRangerAuthorization(user, caller, ACCESS_TYPE_MONITOR, indices, ACCESS_TYPE_MONITOR);
-            if (!allowAction) {
-                presponse.missingPrivileges.add(String.join(",", indices) + " : " + ACCESS_TYPE_MONITOR);
-                log.info("Permission denied for User: " + user.getName() + " Action: " + action + ", required permission : " + ACCESS_TYPE_MONITOR + " , indices: " + String.join(",", indices));
-            }
+            return ACCESS_TYPE_MONITOR;
         } else if (action.startsWith("indices:admin/create")
                 || (action.startsWith("indices:admin/mapping/put"))) {
-            allowAction = checkRangerAuthorization(user, caller, ACCESS_TYPE_WRITE, indices, ACCESS_TYPE_WRITE);
-            if (!allowAction) {
-                presponse.missingPrivileges.add(String.join(",", indices) + " : " + ACCESS_TYPE_WRITE);
-                log.info("Permission denied for User: " + user.getName() + " Action: " + action + ", required permission : " + ACCESS_TYPE_WRITE + " , indices: " + String.join(",", indices));
-            }
+            return ACCESS_TYPE_WRITE;
         } else if ((action.startsWith("indices:data/read"))
                 || (action.startsWith("indices:admin/template/get"))
                 || (action.startsWith("indices:admin/mapping/get"))
@@ -996,41 +1283,216 @@ public class RangerPrivilegesEvaluator extends AbstractPrivilegesEvaluator {
                 || (action.startsWith("indices:admin/exists"))
                 || (action.startsWith("indices:admin/validate/query"))
                 || (action.startsWith("indices:admin/get"))){
-            //Add code for Ranger - Read
-            allowAction = checkRangerAuthorization(user, caller, ACCESS_TYPE_READ, indices, ACCESS_TYPE_READ);
-            if (!allowAction) {
-                presponse.missingPrivileges.add(String.join(",", indices) + " : " + ACCESS_TYPE_READ);
-                log.info("Permission denied for User: " + user.getName() + " Action: " + action + ", required permission : " + ACCESS_TYPE_READ + " , indices: " + String.join(",", indices));
-            }
-
+            return ACCESS_TYPE_READ;
         } else if (action.startsWith("indices:data/write")
                 || (action.startsWith("indices:data/"))) {
-            allowAction = checkRangerAuthorization(user, caller, ACCESS_TYPE_WRITE, indices, ACCESS_TYPE_WRITE);
-            if (!allowAction) {
-                presponse.missingPrivileges.add(String.join(",", indices) + " : " + ACCESS_TYPE_WRITE);
-                log.info("Permission denied for User: " + user.getName() + " Action: " + action + ", required permission : " + ACCESS_TYPE_WRITE + " , indices: " + String.join(",", indices));
+            return ACCESS_TYPE_WRITE;
+        } else {
+            return ACCESS_TYPE_ADMIN;
+        }
+    }
+
+    /**
+     * Authorizes every item of a multi get on its own. Denied items are pointed at a name no
+     * index or alias can have so they fail individually while allowed items run, and items on the
+     * same indices share one Ranger check. The request is only denied when no item is allowed.
+     */
+    private PrivilegesEvaluatorResponse evaluateMultiGetPerItem(final User user, final TransportAddress caller, final String action,
+                                                                final MultiGetRequest request, final MetaData metaData,
+                                                                final PrivilegesEvaluatorResponse presponse) {
+        final Map<Set<String>, Boolean> decisions = new HashMap<Set<String>, Boolean>();
+        final List<MultiGetRequest.Item> deniedItems = new ArrayList<MultiGetRequest.Item>();
+        final Set<String> deniedIndices = new TreeSet<String>();
+
+        for(MultiGetRequest.Item item: request.getItems()) {
+            final Set<String> itemIndices = resolveIndicesRequest(user, action, item, metaData).v1();
+            if (!isItemAllowed(user, caller, itemIndices, decisions)) {
+                deniedItems.add(item);
+                deniedIndices.addAll(itemIndices);
             }
-        } else if (action.startsWith("indices:")) {
-            log.debug("All remaining unknown actions with indices:");
-            allowAction = checkRangerAuthorization(user, caller, ACCESS_TYPE_ADMIN, indices, ACCESS_TYPE_ADMIN);
-            if (!allowAction) {
-                presponse.missingPrivileges.add(String.join(",", indices) + " : " + ACCESS_TYPE_ADMIN);
-                log.info("Permission denied for User: " + user.getName() + " Action: " + action + ", required permission : " + ACCESS_TYPE_ADMIN + " , indices: " + String.join(",", indices));
+        }
+
+        if (deniedItems.size() < request.getItems().size()) {
+            for (MultiGetRequest.Item item : deniedItems) {
+                item.index(DENIED_INDEX_PLACEHOLDER);
             }
-        } else {
-            log.debug("All remaining unknown actions");
-            indices.clear();
-            indices.add("_cluster");
-            allowAction = checkRangerAuthorization(user, caller, ACCESS_TYPE_ADMIN, indices, ACCESS_TYPE_ADMIN);
-            if (!allowAction) {
-                presponse.missingPrivileges.add(String.join(",", indices) + " : " + ACCESS_TYPE_ADMIN);
-                log.info("Permission denied for User: " + user.getName() + " Action: " + action + ", required permission : " + ACCESS_TYPE_ADMIN + " , indices: " + String.join(",", indices));
+        }
+
+        return perItemResponse(user, action, request.getItems().size(), deniedItems.size(), deniedIndices, presponse);
+    }
+
+    /**
+     * Same as {@link #evaluateMultiGetPerItem} for the searches of a multi search. Denied
+     * searches are made strict so they fail rather than return no hits.
+     */
+    private PrivilegesEvaluatorResponse evaluateMultiSearchPerItem(final User user, final TransportAddress caller, final String action,
+                                                                   final MultiSearchRequest request, final MetaData metaData,
+                                                                   final PrivilegesEvaluatorResponse presponse) {
+        final Map<Set<String>, Boolean> decisions = new HashMap<Set<String>, Boolean>();
+        final List<SearchRequest> deniedSearches = new ArrayList<SearchRequest>();
+        final Set<String> deniedIndices = new TreeSet<String>();
+
+        for(SearchRequest searchRequest: request.requests()) {
+            final Set<String> itemIndices = resolve(user, action, searchRequest, metaData).v1();
+            if (!isItemAllowed(user, caller, itemIndices, decisions)) {
+                deniedSearches.add(searchRequest);
+                deniedIndices.addAll(itemIndices);
             }
         }
 
-        presponse.allowed = allowAction;
+        if (deniedSearches.size() < request.requests().size()) {
+            for (SearchRequest searchRequest : deniedSearches) {
+                searchRequest.indices(DENIED_INDEX_PLACEHOLDER);
+                searchRequest.indicesOptions(IndicesOptions.strictExpandOpenAndForbidClosed());
+            }
+        }
+
+        return perItemResponse(user, action, request.requests().size(), deniedSearches.size(), deniedIndices, presponse);
+    }
+
+    private boolean isItemAllowed(final User user, final TransportAddress caller, final Set<String> itemIndices,
+                                  final Map<Set<String>, Boolean> decisions) {
+        Boolean allowed = decisions.get(itemIndices);
+        if (allowed == null) {
+            allowed = checkRangerAuthorization(user, caller, ACCESS_TYPE_READ, itemIndices, ACCESS_TYPE_READ);
+            decisions.put(itemIndices, allowed);
+        }
+        return allowed;
+    }
+
+    private PrivilegesEvaluatorResponse perItemResponse(final User user, final String action, final int items, final int deniedItems,
+                                                        final Set<String> deniedIndices, final PrivilegesEvaluatorResponse presponse) {
+        presponse.allowed = items == 0 || deniedItems < items;
+
+        if (!presponse.allowed) {
+            presponse.missingPrivileges.add(String.join(",", deniedIndices) + " : " + ACCESS_TYPE_READ);
+            log.info("Permission denied for User: " + user.getName() + " Action: " + action + ", required permission : " + ACCESS_TYPE_READ + " , indices: " + String.join(",", deniedIndices));
+        } else if (deniedItems > 0) {
+            log.info("Permission denied for " + deniedItems + " of " + items + " items for User: " + user.getName() + " Action: " + action + ", required permission : " + ACCESS_TYPE_READ + " , indices: " + String.join(",", deniedIndices));
+        }
+
         return presponse;
+    }
+
+    /**
+     * Waits up to the configured time for a bootstrap in progress, then rejects the
+     * request with 503 so clients can tell a starting node from a denied request.
+     */
+    private void awaitBootstrap() {
+        if (bootstrapWaitMs > 0) {
+            try {
+                bootstrapDone.await(bootstrapWaitMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (!isInitialized()) {
+            Throwable failure = bootstrapFailure;
+            if (failure != null) {
+                throw new ElasticsearchSecurityException("RangerPrivilegesEvaluator failed to initialize: " + failure.getMessage(),
+                        RestStatus.SERVICE_UNAVAILABLE);
+            }
+            throw new ElasticsearchSecurityException("RangerPrivilegesEvaluator is still initializing, retry later",
+                    RestStatus.SERVICE_UNAVAILABLE);
+        }
+    }
+
+    /**
+     * Logs the stats as one JSON line, on the opendistro_security.ranger.stats.log_interval_sec
+     * schedule.
+     */
+    private void logStats() {
+        try (XContentBuilder builder = XContentFactory.jsonBuilder()) {
+            statsToXContent(builder, ToXContent.EMPTY_PARAMS);
+            log.info("Ranger evaluator stats " + BytesReference.bytes(builder).utf8ToString());
+        } catch (Exception e) {
+            log.warn("Unable to log the Ranger evaluator stats", e);
+        }
+    }
+
+    /**
+     * Evaluation timings, decision cache, permission matrix, coalescing, principal filter,
+     * policy distribution, shadow evaluation and Kerberos renewal state.
+     */
+    XContentBuilder statsToXContent(XContentBuilder builder, ToXContent.Params params) throws IOException {
+        builder.startObject();
+        builder.field("initialized", isInitialized());
+
+        RangerEvaluationMetrics m = metrics;
+        if (m != null) {
+            builder.field("evaluation");
+            m.toXContent(builder, params);
+        }
+
+        RangerAuthorizer auth = authorizer;
+        RangerDecisionCache cache = auth != null ? auth.getDecisionCache() : null;
+        if (cache != null) {
+            builder.startObject("decision_cache");
+            builder.field("size", cache.size());
+            builder.endObject();
+        }
+
+        RangerPermissionMatrix matrix = auth != null ? auth.getPermissionMatrix() : null;
+        if (matrix != null) {
+            builder.startObject("permission_matrix");
+            builder.field("rows", matrix.getRows());
+            builder.field("hits", matrix.getHits());
+            builder.field("misses", matrix.getMisses());
+            builder.field("builds", matrix.getBuilds());
+            builder.field("dropped", matrix.getDropped());
+            builder.endObject();
+        }
+
+        RangerCheckCoalescer coalescer = auth != null ? auth.getCheckCoalescer() : null;
+        if (coalescer != null) {
+            builder.startObject("coalescing");
+            builder.field("coalesced", coalescer.getCoalesced());
+            builder.field("in_flight", coalescer.getInFlight());
+            builder.endObject();
+        }
+
+        RangerPrincipalFilter principalFilter = auth != null ? auth.getPrincipalFilter() : null;
+        if (principalFilter != null) {
+            builder.startObject("principal_filter");
+            builder.field("principals", principalFilter.getPrincipals());
+            builder.field("denied", principalFilter.getDenied());
+            builder.endObject();
+        }
+
+        RangerPolicyDistribution distribution = RangerPolicyDistribution.getInstance();
+        if (distribution != null) {
+            builder.startObject("policy_distribution");
+            builder.field("publications", distribution.getPublications());
+            builder.field("publication_failures", distribution.getPublicationFailures());
+            builder.field("triggered_downloads", distribution.getTriggeredDownloads());
+            builder.field("fallback_downloads", distribution.getFallbackDownloads());
+            builder.endObject();
+        }
+
+        RangerShadowEvaluator shadow = auth != null ? auth.getShadowEvaluator() : null;
+        if (shadow != null) {
+            builder.startObject("shadow");
+            builder.field("compared", shadow.getCompared());
+            builder.field("mismatches", shadow.getMismatches());
+            builder.field("skipped", shadow.getSkipped());
+            builder.field("dropped", shadow.getDropped());
+            builder.field("avg_saved_us", shadow.getAverageSavedNanos() / 1000);
+            builder.endObject();
+        }
+
+        KerberosTicketRenewer renewer = ticketRenewer;
+        if (renewer != null) {
+            builder.startObject("kerberos");
+            builder.field("ticket_remaining_ms", renewer.getTicketRemainingMs());
+            builder.field("ticket_end_time_ms", renewer.getTicketEndTimeMs());
+            builder.field("last_check_time_ms", renewer.getLastCheckTimeMs());
+            builder.field("failures", renewer.getFailures());
+            builder.endObject();
+        }
 
+        builder.endObject();
+        return builder;
     }
 
     @Override
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2020 ThalesGroup
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.guavus.ranger;
+
+import com.amazon.opendistroforelasticsearch.security.user.User;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.ranger.plugin.service.RangerAuthContext;
+import org.elasticsearch.common.transport.TransportAddress;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Validates the fast authorization paths (decision cache and the like) against the
+ * plain per-index Ranger evaluation on a sample of checks.
+ *
+ * The fast decision is returned to the caller as usual; for sampled checks the
+ * reference evaluation runs later on a background thread and mismatches are logged
+ * with the full request context and the latency of both paths. Checks that happened
+ * across a policy or tag refresh are not compared, and checks are dropped rather than queued
+ * without bound when the background thread falls behind.
+ */
+public class RangerShadowEvaluator {
+
+    protected final Logger log = LogManager.getLogger(this.getClass());
+
+    private static final int QUEUE_SIZE = 1000;
+    // indices beyond this many are elided from mismatch logs
+    private static final int MAX_LOGGED_INDICES = 50;
+
+    /**
+     * The reference evaluation, without any fast path and without audit.
+     */
+    public interface ReferenceCheck {
+        boolean check(User user, TransportAddress caller, String accessType, Set<String> indices, String clusterLevelAccessType);
+    }
+
+    private final double sampleRate;
+    private final ReferenceCheck referenceCheck;
+    private final Supplier<RangerAuthContext> authContext;
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong compared = new AtomicLong();
+    private final AtomicLong mismatches = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong fastNanos = new AtomicLong();
+    private final AtomicLong referenceNanos = new AtomicLong();
+
+    public RangerShadowEvaluator(double sampleRate, ReferenceCheck referenceCheck, Supplier<RangerAuthContext> authContext) {
+        this.sampleRate = sampleRate;
+        this.referenceCheck = referenceCheck;
+        this.authContext = authContext;
+        this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), r -> {
+            Thread thread = new Thread(r, "ranger-shadow-evaluator");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public boolean sample() {
+        return ThreadLocalRandom.current().nextDouble() < sampleRate;
+    }
+
+    /**
+     * Schedules the reference evaluation of a check the fast path answered with fastAllowed.
+     */
+    public void compare(final User user, final TransportAddress caller, final String accessType, final Set<String> indices,
+                        final String clusterLevelAccessType, final boolean fastAllowed, final long fastElapsedNanos) {
+        final Set<String> indicesCopy = Collections.unmodifiableSet(new HashSet<String>(indices));
+        final RangerAuthContext context = authContext.get();
+
+        try {
+            executor.execute(() -> {
+                long start = System.nanoTime();
+                boolean referenceAllowed = referenceCheck.check(user, caller, accessType, indicesCopy, clusterLevelAccessType);
+                long referenceElapsedNanos = System.nanoTime() - start;
+
+                // a policy or tag refresh in between makes the two decisions incomparable
+                if (authContext.get() != context) {
+                    skipped.incrementAndGet();
+                    return;
+                }
+
+                compared.incrementAndGet();
+                fastNanos.addAndGet(fastElapsedNanos);
+                referenceNanos.addAndGet(referenceElapsedNanos);
+
+                if (referenceAllowed != fastAllowed) {
+                    mismatches.incrementAndGet();
+                    log.warn("Shadow evaluation mismatch for user: " + user.getName() + ", groups: " + user.getRoles()
+                            + ", caller: " + caller + ", accessType: " + accessType + ", clusterLevelAccessType: " + clusterLevelAccessType
+                            + ", policyVersion: " + (context != null ? context.getPolicyVersion() : null) + ", fast: " + fastAllowed + " in " + fastElapsedNanos / 1000 + " us"
+                            + ", reference: " + referenceAllowed + " in " + referenceElapsedNanos / 1000 + " us"
+                            + ", indices (" + indicesCopy.size() + "): " + abbreviate(indicesCopy));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    public long getCompared() {
+        return compared.get();
+    }
+
+    public long getMismatches() {
+        return mismatches.get();
+    }
+
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Average time the reference path took more than the fast path, over all compared checks.
+     */
+    public long getAverageSavedNanos() {
+        long count = compared.get();
+        return count == 0 ? 0 : (referenceNanos.get() - fastNanos.get()) / count;
+    }
+
+    private static String abbreviate(Set<String> indices) {
+        if (indices.size() <= MAX_LOGGED_INDICES) {
+            return String.join(",", indices);
+        }
+        List<String> head = new ArrayList<String>(MAX_LOGGED_INDICES);
+        for (String index : indices) {
+            if (head.size() == MAX_LOGGED_INDICES) {
+                break;
+            }
+            head.add(index);
+        }
+        return String.join(",", head) + ",...";
+    }
+}
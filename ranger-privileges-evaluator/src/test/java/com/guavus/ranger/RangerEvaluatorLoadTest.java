@@ -0,0 +1,611 @@
+/*
+ * Copyright 2020 ThalesGroup
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.guavus.ranger;
+
+import com.amazon.opendistroforelasticsearch.security.user.User;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.ranger.authorization.hadoop.config.RangerConfiguration;
+import org.apache.ranger.plugin.audit.RangerDefaultAuditHandler;
+import org.apache.ranger.plugin.model.RangerPolicy;
+import org.apache.ranger.plugin.model.RangerServiceDef;
+import org.apache.ranger.plugin.service.RangerBasePlugin;
+import org.apache.ranger.plugin.util.RangerRESTUtils;
+import org.apache.ranger.plugin.util.ServicePolicies;
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.TransportAddress;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays authorization traces through the Ranger authorization path of the evaluator
+ * and reports throughput, latency percentiles, GC and allocation per configuration.
+ *
+ * Policies come from a local stand-in for the Ranger admin policy download endpoint,
+ * fetched by the RangerDeltaAdminRESTClient of the plugin, and can be changed during the run to
+ * measure the cost of policy refreshes. No Elasticsearch node or Ranger admin is needed.
+ *
+ * Traces are tab separated lines of action, request class, indices, user and groups,
+ * the last three comma separated, with indices already resolved:
+ *
+ *   indices:data/read/search  SearchRequest  logs-app1-0,logs-app1-1  user1  group1
+ *
+ * Without --traces, a synthetic mix of searches, bulks, multi searches and cluster
+ * monitoring over --indices daily indices of 50 applications is generated.
+ *
+ * Usage: java -cp target/test-classes:<evaluator classpath> com.guavus.ranger.RangerEvaluatorLoadTest
+ *          [--traces=<file>] [--requests=100000] [--indices=1000] [--users=100] [--groups=20]
+ *          [--policies=200] [--threads=1,4,16] [--decisionCache=off,on] [--shadowSampleRate=0]
+ *          [--pruningMinIndices=0] [--permissionMatrixMaxRows=0] [--coalescing=false] [--burst=false]
+ *          [--principalFilter=false] [--ungrantedUsers=0]
+ *          [--warmupSec=5] [--durationSec=20] [--churnMs=2000] [--pollMs=1000]
+ */
+public class RangerEvaluatorLoadTest {
+
+    private static final String SERVICE_TYPE = "elasticsearch";
+    private static final String SERVICE_NAME = "es";
+    private static final String CLUSTER_NAME = "loadtest";
+    private static final String PLUGIN_PREFIX = "ranger.plugin." + SERVICE_TYPE;
+    private static final int APPLICATIONS = 50;
+    private static final int DECISION_CACHE_MAX_ENTRIES = 100000;
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+    private final Map<String, String> args;
+    private final List<Trace> traces;
+    private final PolicyStandIn policies;
+    private final TransportAddress caller;
+
+    private RangerEvaluatorLoadTest(Map<String, String> args) throws IOException {
+        this.args = args;
+        this.caller = new TransportAddress(InetAddress.getLoopbackAddress(), 9300);
+
+        int users = Integer.parseInt(getArg("users", "100"));
+        int groups = Integer.parseInt(getArg("groups", "20"));
+        int indices = Integer.parseInt(getArg("indices", "1000"));
+
+        this.traces = toIndexSets(args.containsKey("traces") ? readTraces(args.get("traces"))
+                : generateTraces(Integer.parseInt(getArg("requests", "100000")), indices, users, groups,
+                        Integer.parseInt(getArg("ungrantedUsers", "0"))));
+        this.policies = new PolicyStandIn(Integer.parseInt(getArg("policies", "200")), groups);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> parsedArgs = new HashMap<String, String>();
+
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.indexOf('=') > 2) {
+                parsedArgs.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            } else {
+                System.err.println("Ignoring argument " + arg + ", expected --name=value");
+            }
+        }
+
+        new RangerEvaluatorLoadTest(parsedArgs).run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        long churnMs = Long.parseLong(getArg("churnMs", "2000"));
+        long warmupMs = TimeUnit.SECONDS.toMillis(Long.parseLong(getArg("warmupSec", "5")));
+        long durationMs = TimeUnit.SECONDS.toMillis(Long.parseLong(getArg("durationSec", "20")));
+        double shadowSampleRate = Double.parseDouble(getArg("shadowSampleRate", "0"));
+        int pruningMinIndices = Integer.parseInt(getArg("pruningMinIndices", "0"));
+        int permissionMatrixMaxRows = Integer.parseInt(getArg("permissionMatrixMaxRows", "0"));
+        boolean coalescing = Boolean.parseBoolean(getArg("coalescing", "false"));
+        boolean principalFilter = Boolean.parseBoolean(getArg("principalFilter", "false"));
+
+        HttpServer server = policies.start();
+        File cacheDir = Files.createTempDirectory("ranger-loadtest").toFile();
+
+        configurePlugin("http://127.0.0.1:" + server.getAddress().getPort(), cacheDir, getArg("pollMs", "1000"));
+
+        System.out.println("traces=" + traces.size() + ", policies=" + policies.size() + ", churnMs=" + churnMs
+                + ", warmupSec=" + warmupMs / 1000 + ", durationSec=" + durationMs / 1000 + ", shadowSampleRate=" + shadowSampleRate + ", pruningMinIndices=" + pruningMinIndices
+                + ", permissionMatrixMaxRows=" + permissionMatrixMaxRows + ", coalescing=" + coalescing
+                + ", burst=" + getArg("burst", "false") + ", principalFilter=" + principalFilter);
+        System.out.println(String.format("%-8s %-6s %12s %10s %10s %10s %10s %8s %8s %10s %9s",
+                "threads", "cache", "ops/sec", "p50 us", "p99 us", "p99.9 us", "max us", "gc", "gc ms", "alloc B/op", "refreshes"));
+
+        try {
+            for (String cache : getArg("decisionCache", "off,on").split(",")) {
+                for (String threads : getArg("threads", "1,4,16").split(",")) {
+                    runConfiguration(Integer.parseInt(threads.trim()), "on".equals(cache.trim()), shadowSampleRate,
+                            pruningMinIndices, permissionMatrixMaxRows, coalescing, principalFilter, churnMs, warmupMs, durationMs);
+                }
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private void runConfiguration(int threads, boolean decisionCache, double shadowSampleRate, int pruningMinIndices,
+                                  int permissionMatrixMaxRows, boolean coalescing, boolean principalFilter, long churnMs,
+                                  long warmupMs, long durationMs) throws Exception {
+        RangerBasePlugin plugin = new RangerElasticsearchPlugin(SERVICE_TYPE, "loadtest");
+        plugin.init();
+        plugin.setResultProcessor(new RangerDefaultAuditHandler());
+
+        RangerAuthorizer authorizer = new RangerAuthorizer(plugin, CLUSTER_NAME,
+                decisionCache ? DECISION_CACHE_MAX_ENTRIES : 0, shadowSampleRate, pruningMinIndices, permissionMatrixMaxRows,
+                coalescing, principalFilter);
+
+        Thread churn = churnMs > 0 ? policies.startChurn(churnMs) : null;
+
+        try {
+            // warmup, then the measured run
+            drive(authorizer, threads, warmupMs, new Recorder(HIGHEST_TRACKABLE_MICROS, 2), new AtomicLong());
+
+            Recorder recorder = new Recorder(HIGHEST_TRACKABLE_MICROS, 2);
+            AtomicLong allocated = new AtomicLong();
+            long versionStart = policies.downloads.get();
+            long[] gcStart = gcCountAndTime();
+            long start = System.nanoTime();
+
+            drive(authorizer, threads, durationMs, recorder, allocated);
+
+            long elapsedNanos = System.nanoTime() - start;
+            long[] gcEnd = gcCountAndTime();
+            Histogram histogram = recorder.getIntervalHistogram();
+            long ops = histogram.getTotalCount();
+
+            System.out.println(String.format("%-8d %-6s %12.0f %10d %10d %10d %10d %8d %8d %10d %9d",
+                    threads, decisionCache ? "on" : "off", ops / (elapsedNanos / 1e9),
+                    histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(99), histogram.getValueAtPercentile(99.9),
+                    histogram.getMaxValue(), gcEnd[0] - gcStart[0], gcEnd[1] - gcStart[1],
+                    ops == 0 ? 0 : allocated.get() / ops, policies.downloads.get() - versionStart));
+
+            RangerPermissionMatrix matrix = authorizer.getPermissionMatrix();
+            if (matrix != null) {
+                System.out.println("    permission matrix: rows=" + matrix.getRows() + ", hits=" + matrix.getHits()
+                        + ", misses=" + matrix.getMisses() + ", builds=" + matrix.getBuilds() + ", dropped=" + matrix.getDropped());
+            }
+
+            RangerCheckCoalescer coalescer = authorizer.getCheckCoalescer();
+            if (coalescer != null) {
+                System.out.println("    coalescing: coalesced=" + coalescer.getCoalesced());
+            }
+
+            RangerPrincipalFilter filter = authorizer.getPrincipalFilter();
+            if (filter != null) {
+                System.out.println("    principal filter: principals=" + filter.getPrincipals() + ", denied=" + filter.getDenied());
+            }
+
+            RangerShadowEvaluator shadow = authorizer.getShadowEvaluator();
+            if (shadow != null) {
+                System.out.println("    shadow: compared=" + shadow.getCompared() + ", mismatches=" + shadow.getMismatches()
+                        + ", skipped=" + shadow.getSkipped() + ", dropped=" + shadow.getDropped());
+            }
+        } finally {
+            if (churn != null) {
+                churn.interrupt();
+                churn.join();
+            }
+            authorizer.stop();
+            plugin.cleanup();
+        }
+    }
+
+    private void drive(final RangerAuthorizer authorizer, int threads, long durationMs, final Recorder recorder,
+                       final AtomicLong allocated) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMs);
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        List<Thread> workers = new ArrayList<Thread>(threads);
+
+        // in a burst all threads replay the same traces in step, like the panels of a dashboard refresh
+        final boolean burst = Boolean.parseBoolean(getArg("burst", "false"));
+
+        for (int t = 0; t < threads; t++) {
+            final int offset = burst ? 0 : t * (traces.size() / threads);
+
+            Thread worker = new Thread(() -> {
+                long allocStart = allocatedBytes(threadBean);
+                int i = offset;
+
+                while (System.nanoTime() < deadline) {
+                    Trace trace = traces.get(i++ % traces.size());
+                    long start = System.nanoTime();
+                    authorizer.isAllowed(trace.user, caller, trace.accessType, trace.indices, trace.accessType);
+                    recorder.recordValue(Math.min(HIGHEST_TRACKABLE_MICROS, (System.nanoTime() - start) / 1000));
+                }
+
+                allocated.addAndGet(allocatedBytes(threadBean) - allocStart);
+            }, "loadtest-" + t);
+            worker.start();
+            workers.add(worker);
+        }
+
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    private static void configurePlugin(String adminUrl, File cacheDir, String pollMs) {
+        RangerConfiguration config = RangerConfiguration.getInstance();
+
+        config.set(PLUGIN_PREFIX + ".service.name", SERVICE_NAME);
+        config.set(PLUGIN_PREFIX + ".policy.source.impl", RangerDeltaAdminRESTClient.class.getName());
+        config.set(PLUGIN_PREFIX + ".policy.rest.url", adminUrl);
+        config.set(PLUGIN_PREFIX + ".policy.pollIntervalMs", pollMs);
+        config.set(PLUGIN_PREFIX + ".policy.cache.dir", cacheDir.getAbsolutePath());
+    }
+
+    /**
+     * Maps a trace to the access type evaluate() would check, for the request classes it
+     * handles specifically and otherwise from the action.
+     */
+    private static Trace toTrace(String action, String requestClass, Set<String> indices, User user) {
+        String accessType = RangerPrivilegesEvaluator.accessTypeForRequest(action, requestClass);
+        if ("admin".equals(accessType) && !action.startsWith("indices:")) {
+            indices = Collections.singleton("_cluster");
+        }
+
+        if (indices.isEmpty()) {
+            indices = Collections.singleton("_all");
+        }
+
+        return new Trace(accessType, indices, user);
+    }
+
+    /**
+     * Replaces the indices of the traces by index sets over a cluster holding all of the
+     * traces' indices, as the evaluator resolves them.
+     */
+    private static List<Trace> toIndexSets(List<Trace> traces) {
+        Set<String> names = new TreeSet<String>();
+        for (Trace trace : traces) {
+            names.addAll(trace.indices);
+        }
+        names.remove("_all");
+        names.remove("_cluster");
+
+        MetaData.Builder metaData = MetaData.builder();
+        Settings settings = Settings.builder().put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT).build();
+        for (String name : names) {
+            metaData.put(IndexMetaData.builder(name).settings(settings).numberOfShards(1).numberOfReplicas(0));
+        }
+
+        RangerIndexSets indexSets = new RangerIndexSets();
+        MetaData built = metaData.build();
+        List<Trace> ret = new ArrayList<Trace>(traces.size());
+        for (Trace trace : traces) {
+            ret.add(new Trace(trace.accessType, indexSets.builder(built).addAll(trace.indices).build(), trace.user));
+        }
+        return ret;
+    }
+
+    private static List<Trace> readTraces(String path) throws IOException {
+        List<Trace> ret = new ArrayList<Trace>();
+        Map<String, User> users = new HashMap<String, User>();
+
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+            for (String line; (line = reader.readLine()) != null; ) {
+                if (line.trim().isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                String[] fields = line.split("\t");
+                if (fields.length < 4) {
+                    System.err.println("Ignoring trace line " + line + ", expected action, request class, indices, user and groups");
+                    continue;
+                }
+
+                Set<String> indices = new LinkedHashSet<String>(splitList(fields[2]));
+                User user = users.computeIfAbsent(fields[3] + "\t" + (fields.length > 4 ? fields[4] : ""),
+                        k -> newUser(fields[3], fields.length > 4 ? splitList(fields[4]) : Collections.<String>emptyList()));
+
+                ret.add(toTrace(fields[0], fields[1], indices, user));
+            }
+        }
+
+        return ret;
+    }
+
+    private static List<Trace> generateTraces(int count, int indexCount, int userCount, int groupCount, int ungrantedUserCount) {
+        List<Trace> ret = new ArrayList<Trace>(count);
+        List<User> users = new ArrayList<User>(userCount + ungrantedUserCount);
+        Random random = new Random(42);
+        int days = Math.max(1, indexCount / APPLICATIONS);
+
+        for (int u = 0; u < userCount; u++) {
+            users.add(newUser("user" + u, Arrays.asList("group" + (u % groupCount), "group" + ((u * 7 + 3) % groupCount))));
+        }
+        // service accounts no policy mentions
+        for (int u = 0; u < ungrantedUserCount; u++) {
+            users.add(newUser("svc" + u, Collections.singletonList("service-accounts")));
+        }
+
+        for (int i = 0; i < count; i++) {
+            User user = users.get(random.nextInt(users.size()));
+            int app = random.nextInt(APPLICATIONS);
+            int kind = random.nextInt(100);
+
+            if (kind < 60) {
+                ret.add(toTrace("indices:data/read/search", "SearchRequest", indices(random, app, days, 1 + random.nextInt(7)), user));
+            } else if (kind < 80) {
+                ret.add(toTrace("indices:data/write/bulk[s]", "BulkShardRequest", indices(random, app, days, 1), user));
+            } else if (kind < 90) {
+                Set<String> indices = indices(random, app, days, 3);
+                indices.addAll(indices(random, random.nextInt(APPLICATIONS), days, 3));
+                ret.add(toTrace("indices:data/read/msearch", "MultiSearchRequest", indices, user));
+            } else if (kind < 95) {
+                ret.add(toTrace("indices:admin/get", "GetIndexRequest", indices(random, app, days, 1), user));
+            } else {
+                ret.add(toTrace("cluster:monitor/health", "ClusterHealthRequest", Collections.<String>emptySet(), user));
+            }
+        }
+
+        return ret;
+    }
+
+    private static Set<String> indices(Random random, int app, int days, int count) {
+        Set<String> ret = new LinkedHashSet<String>();
+        int lastDay = random.nextInt(days);
+
+        for (int d = Math.max(0, lastDay - count + 1); d <= lastDay; d++) {
+            ret.add("logs-app" + app + "-" + d);
+        }
+
+        return ret;
+    }
+
+    private static User newUser(String name, List<String> groups) {
+        User user = new User(name);
+        user.addRoles(groups);
+        return user;
+    }
+
+    private static List<String> splitList(String value) {
+        List<String> ret = new ArrayList<String>();
+
+        for (String item : value.split(",")) {
+            if (!item.trim().isEmpty()) {
+                ret.add(item.trim());
+            }
+        }
+
+        return ret;
+    }
+
+    private String getArg(String name, String defaultValue) {
+        String value = args.get(name);
+
+        return value != null ? value : defaultValue;
+    }
+
+    private static long allocatedBytes(ThreadMXBean threadBean) {
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        return 0;
+    }
+
+    private static long[] gcCountAndTime() {
+        long[] ret = new long[2];
+
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            ret[0] += Math.max(0, gc.getCollectionCount());
+            ret[1] += Math.max(0, gc.getCollectionTime());
+        }
+
+        return ret;
+    }
+
+    private static final class Trace {
+        final String accessType;
+        final Set<String> indices;
+        final User user;
+
+        Trace(String accessType, Set<String> indices, User user) {
+            this.accessType = accessType;
+            this.indices = indices;
+            this.user = user;
+        }
+    }
+
+    /**
+     * Serves the policies of the elasticsearch service the way the Ranger admin policy
+     * download endpoint does, answering 304 when the plugin is up to date.
+     */
+    private static final class PolicyStandIn {
+        // the date format Ranger exchanges policies with
+        private final Gson gson = new GsonBuilder().setDateFormat("yyyyMMdd-HH:mm:ss.SSS-Z").create();
+        private final RangerServiceDef serviceDef = serviceDef();
+        private final List<RangerPolicy> policies = new ArrayList<RangerPolicy>();
+        private final int groupCount;
+        private final AtomicLong downloads = new AtomicLong();
+        private long version = 1;
+
+        PolicyStandIn(int policyCount, int groupCount) {
+            this.groupCount = groupCount;
+
+            policies.add(policy(0, "_all", Collections.singletonList("admin"), Collections.<String>emptyList(), "admin"));
+
+            for (int p = 1; p < policyCount; p++) {
+                policies.add(policy(p, "logs-app" + (p % APPLICATIONS) + "-*", Collections.<String>emptyList(),
+                        Collections.singletonList("group" + (p % groupCount)), p % 3 == 0 ? "write" : "read"));
+            }
+        }
+
+        synchronized int size() {
+            return policies.size();
+        }
+
+        HttpServer start() throws IOException {
+            HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.createContext(RangerRESTUtils.REST_URL_POLICY_GET_FOR_SERVICE_IF_UPDATED + SERVICE_NAME, this::download);
+            server.start();
+            return server;
+        }
+
+        /**
+         * Moves a random policy to another group every interval, as policy administration would.
+         */
+        Thread startChurn(final long intervalMs) {
+            Thread thread = new Thread(() -> {
+                Random random = new Random();
+
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        Thread.sleep(intervalMs);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    synchronized (this) {
+                        RangerPolicy policy = policies.get(1 + random.nextInt(policies.size() - 1));
+                        policy.getPolicyItems().get(0).setGroups(new ArrayList<String>(
+                                Collections.singletonList("group" + random.nextInt(groupCount))));
+                        policy.setVersion(policy.getVersion() + 1);
+                        version++;
+                    }
+                }
+            }, "loadtest-policy-churn");
+            thread.setDaemon(true);
+            thread.start();
+            return thread;
+        }
+
+        private void download(HttpExchange exchange) throws IOException {
+            String query = exchange.getRequestURI().getRawQuery();
+            String lastKnownVersion = null;
+
+            if (query != null) {
+                for (String param : query.split("&")) {
+                    if (param.startsWith(RangerRESTUtils.REST_PARAM_LAST_KNOWN_POLICY_VERSION + "=")) {
+                        lastKnownVersion = param.substring(param.indexOf('=') + 1);
+                    }
+                }
+            }
+
+            byte[] body = null;
+
+            synchronized (this) {
+                if (!String.valueOf(version).equals(lastKnownVersion)) {
+                    ServicePolicies servicePolicies = new ServicePolicies();
+                    servicePolicies.setServiceName(SERVICE_NAME);
+                    servicePolicies.setServiceId(1L);
+                    servicePolicies.setPolicyVersion(version);
+                    servicePolicies.setServiceDef(serviceDef);
+                    servicePolicies.setPolicies(policies);
+                    body = gson.toJson(servicePolicies).getBytes(StandardCharsets.UTF_8);
+                }
+            }
+
+            if (body == null) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+
+            downloads.incrementAndGet();
+            exchange.getResponseHeaders().set("Content-Type", RangerRESTUtils.REST_MIME_TYPE_JSON);
+            exchange.sendResponseHeaders(200, body.length);
+
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+
+        private static RangerPolicy policy(long id, String index, List<String> users, List<String> groups, String accessType) {
+            RangerPolicy policy = new RangerPolicy();
+            policy.setId(id);
+            policy.setName("policy-" + id);
+            policy.setService(SERVICE_NAME);
+            policy.setVersion(1L);
+            policy.setIsEnabled(true);
+            policy.setIsAuditEnabled(true);
+
+            Map<String, RangerPolicy.RangerPolicyResource> resources = new HashMap<String, RangerPolicy.RangerPolicyResource>();
+            resources.put("index", new RangerPolicy.RangerPolicyResource(index));
+            policy.setResources(resources);
+
+            List<RangerPolicy.RangerPolicyItemAccess> accesses = new ArrayList<RangerPolicy.RangerPolicyItemAccess>();
+            accesses.add(new RangerPolicy.RangerPolicyItemAccess(accessType, true));
+            List<RangerPolicy.RangerPolicyItem> items = new ArrayList<RangerPolicy.RangerPolicyItem>();
+            items.add(new RangerPolicy.RangerPolicyItem(accesses, new ArrayList<String>(users), new ArrayList<String>(groups),
+                    new ArrayList<RangerPolicy.RangerPolicyItemCondition>(), false));
+            policy.setPolicyItems(items);
+
+            return policy;
+        }
+
+        /**
+         * The resource and access types of ranger-elasticsearch-plugin, which is the service def
+         * the plugin gets from the Ranger admin.
+         */
+        private static RangerServiceDef serviceDef() {
+            RangerServiceDef serviceDef = new RangerServiceDef();
+            serviceDef.setId(101L);
+            serviceDef.setName(SERVICE_TYPE);
+
+            RangerServiceDef.RangerResourceDef index = new RangerServiceDef.RangerResourceDef();
+            index.setItemId(1L);
+            index.setName("index");
+            index.setType("string");
+            index.setLevel(10);
+            index.setMandatory(true);
+            index.setLookupSupported(true);
+            index.setRecursiveSupported(false);
+            index.setMatcher("org.apache.ranger.plugin.resourcematcher.RangerPathResourceMatcher");
+            Map<String, String> matcherOptions = new HashMap<String, String>();
+            matcherOptions.put("wildCard", "true");
+            matcherOptions.put("ignoreCase", "true");
+            matcherOptions.put("pathSeparatorChar", ".");
+            index.setMatcherOptions(matcherOptions);
+            serviceDef.setResources(new ArrayList<RangerServiceDef.RangerResourceDef>(Collections.singletonList(index)));
+
+            List<RangerServiceDef.RangerAccessTypeDef> accessTypes = new ArrayList<RangerServiceDef.RangerAccessTypeDef>();
+            accessTypes.add(new RangerServiceDef.RangerAccessTypeDef(1L, "admin", "admin", null, new ArrayList<String>(Arrays.asList("read", "write"))));
+            accessTypes.add(new RangerServiceDef.RangerAccessTypeDef(2L, "write", "write", null, new ArrayList<String>(Collections.singletonList("read"))));
+            accessTypes.add(new RangerServiceDef.RangerAccessTypeDef(3L, "read", "read", null, new ArrayList<String>(Collections.singletonList("monitor"))));
+            accessTypes.add(new RangerServiceDef.RangerAccessTypeDef(4L, "monitor", "monitor", null, new ArrayList<String>()));
+            serviceDef.setAccessTypes(accessTypes);
+
+            return serviceDef;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2020 ThalesGroup
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.guavus.ranger;
+
+import junit.framework.TestCase;
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.ClusterModule;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.ClusterStateTaskConfig;
+import org.elasticsearch.cluster.ClusterStateTaskExecutor;
+import org.elasticsearch.cluster.ClusterStateTaskListener;
+import org.elasticsearch.cluster.ClusterStateUpdateTask;
+import org.elasticsearch.cluster.block.ClusterBlocks;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.NamedWriteableAwareStreamInput;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.gateway.GatewayService;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a master and a follower in one JVM. The master's cluster state updates are applied by
+ * hand and reach the follower as the serialized diff Elasticsearch would send it.
+ */
+public class RangerPolicyDistributionTest extends TestCase {
+
+    private static final String INDEX = ".opendistro_security";
+    private static final String SERVICE = "es";
+
+    private ThreadPool threadPool;
+    private DiscoveryNode masterNode;
+    private DiscoveryNode followerNode;
+    private Node master;
+    private Node follower;
+    private RangerPolicyDistribution masterDistribution;
+    private RangerPolicyDistribution followerDistribution;
+
+    /**
+     * A cluster service whose state is set by the test and whose update tasks only run when the
+     * test says so.
+     */
+    private static class Node extends ClusterService {
+
+        private ClusterState state;
+        private ClusterStateUpdateTask task;
+
+        Node(ThreadPool threadPool) {
+            super(Settings.builder().put("node.name", "test").build(),
+                    new ClusterSettings(Settings.EMPTY, ClusterSettings.BUILT_IN_CLUSTER_SETTINGS), threadPool, Collections.emptyMap());
+        }
+
+        @Override
+        public ClusterState state() {
+            return state;
+        }
+
+        @Override
+        public <T extends ClusterStateTaskConfig & ClusterStateTaskExecutor<T> & ClusterStateTaskListener> void submitStateUpdateTask(String source, T task) {
+            this.task = (ClusterStateUpdateTask) task;
+        }
+
+        void runTask() throws Exception {
+            ClusterState oldState = state;
+            ClusterState newState = task.execute(oldState);
+            if (newState != oldState) {
+                newState = ClusterState.builder(newState).incrementVersion().build();
+            }
+            state = newState;
+            task.clusterStateProcessed("test", oldState, newState);
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        threadPool = new ThreadPool(Settings.builder().put("node.name", "test").build());
+        masterNode = new DiscoveryNode("master", new TransportAddress(InetAddress.getLoopbackAddress(), 9300), Version.CURRENT);
+        followerNode = new DiscoveryNode("follower", new TransportAddress(InetAddress.getLoopbackAddress(), 9301), Version.CURRENT);
+
+        IndexMetaData index = IndexMetaData.builder(INDEX)
+                .settings(Settings.builder().put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT))
+                .numberOfShards(1).numberOfReplicas(0).build();
+        ClusterState base = ClusterState.builder(new ClusterName("test")).metaData(MetaData.builder().put(index, false)).build();
+
+        master = new Node(threadPool);
+        master.state = ClusterState.builder(base).nodes(nodes(masterNode.getId())).build();
+        follower = new Node(threadPool);
+        follower.state = ClusterState.builder(base).nodes(nodes(followerNode.getId())).build();
+
+        masterDistribution = new RangerPolicyDistribution(master, INDEX);
+        followerDistribution = new RangerPolicyDistribution(follower, INDEX);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+    }
+
+    public void testOnlyMasterLeads() {
+        assertTrue(masterDistribution.isLeader());
+        assertFalse(followerDistribution.isLeader());
+        assertNull(followerDistribution.getPublishedVersion(SERVICE));
+    }
+
+    public void testFollowerSeesPublishedVersion() throws Exception {
+        publish(42);
+
+        assertEquals(Long.valueOf(42), followerDistribution.getPublishedVersion(SERVICE));
+        assertNull(followerDistribution.getPublishedVersion("other"));
+        assertEquals(1, masterDistribution.getPublications());
+    }
+
+    public void testFollowerSeesVersionGoingBack() throws Exception {
+        publish(42);
+        publish(7);
+
+        assertEquals(Long.valueOf(7), followerDistribution.getPublishedVersion(SERVICE));
+        assertEquals(2, masterDistribution.getPublications());
+    }
+
+    public void testSameVersionLeavesStateUnchanged() throws Exception {
+        publish(42);
+
+        ClusterState before = master.state;
+        masterDistribution.publish(SERVICE, 42);
+        master.runTask();
+
+        assertSame(before, master.state);
+        assertEquals(1, masterDistribution.getPublications());
+    }
+
+    public void testNoStateMeansNoLeaderNorVersion() throws Exception {
+        publish(42);
+
+        follower.state = null;
+
+        assertFalse(followerDistribution.isLeader());
+        assertNull(followerDistribution.getPublishedVersion(SERVICE));
+    }
+
+    public void testUnrecoveredStateMeansNoLeaderNorVersion() throws Exception {
+        publish(42);
+
+        ClusterState recovered = follower.state;
+        follower.state = ClusterState.builder(recovered)
+                .blocks(ClusterBlocks.builder().addGlobalBlock(GatewayService.STATE_NOT_RECOVERED_BLOCK)).build();
+        master.state = ClusterState.builder(master.state)
+                .blocks(ClusterBlocks.builder().addGlobalBlock(GatewayService.STATE_NOT_RECOVERED_BLOCK)).build();
+
+        assertFalse(masterDistribution.isLeader());
+        assertNull(followerDistribution.getPublishedVersion(SERVICE));
+
+        follower.state = recovered;
+
+        assertEquals(Long.valueOf(42), followerDistribution.getPublishedVersion(SERVICE));
+    }
+
+    private DiscoveryNodes nodes(String localNodeId) {
+        return DiscoveryNodes.builder().add(masterNode).add(followerNode)
+                .localNodeId(localNodeId).masterNodeId(masterNode.getId()).build();
+    }
+
+    /**
+     * Publishes the version on the master and sends the follower the resulting diff.
+     */
+    private void publish(long version) throws Exception {
+        ClusterState previous = master.state;
+        masterDistribution.publish(SERVICE, version);
+        master.runTask();
+
+        BytesStreamOutput out = new BytesStreamOutput();
+        master.state.diff(previous).writeTo(out);
+        NamedWriteableRegistry registry = new NamedWriteableRegistry(ClusterModule.getNamedWriteables());
+        NamedWriteableAwareStreamInput in = new NamedWriteableAwareStreamInput(out.bytes().streamInput(), registry);
+        follower.state = ClusterState.readDiffFrom(in, followerNode).apply(follower.state);
+    }
+}
@@ -15,12 +15,19 @@
 
 package com.guavus.tagsync.source.atlas;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.ranger.tagsync.source.atlas.AtlasResourceMapper;
-import org.apache.ranger.plugin.model.RangerPolicy;
 import org.apache.ranger.plugin.model.RangerPolicy.RangerPolicyResource;
 import org.apache.ranger.plugin.model.RangerServiceResource;
 import org.apache.ranger.tagsync.source.atlasrest.RangerAtlasEntity;
@@ -32,33 +39,91 @@ import org.apache.ranger.tagsync.source.atlasrest.RangerAtlasEntity;
  */
 
 public class AtlasESResourceMapper extends AtlasResourceMapper {
-	public static final String ENTITY_TYPE_ES_INDEX = "es_index";
-	public static final String RANGER_TYPE_ES_INDEX = "index";
+	private static final Log LOG = LogFactory.getLog(AtlasESResourceMapper.class);
+
+	public static final String ENTITY_TYPE_ES_INDEX         = "es_index";
+	public static final String ENTITY_TYPE_ES_INDEX_PATTERN = "es_index_pattern";
+	public static final String RANGER_TYPE_ES_INDEX         = "index";
 
 	public static final String ENTITY_ATTRIBUTE_QUALIFIED_NAME = "qualifiedName";
+	public static final String ENTITY_ATTRIBUTE_PATTERN        = "pattern";
+
+	public static final String[] SUPPORTED_ENTITY_TYPES = { ENTITY_TYPE_ES_INDEX, ENTITY_TYPE_ES_INDEX_PATTERN };
+
+	private static final char QUALIFIED_NAME_CLUSTER_DELIMITER = '@';
 
-	public static final String[] SUPPORTED_ENTITY_TYPES = { ENTITY_TYPE_ES_INDEX };
+	// characters ES does not allow in index names, and so in patterns either
+	private static final String INVALID_PATTERN_CHARS = "\\/\"<>|, #";
+
+	// cluster name -> Ranger service name, also used to intern cluster names
+	private final Map<String, String> serviceNames = new ConcurrentHashMap<String, String>();
 
 	public AtlasESResourceMapper() {
 		super("elasticsearch", SUPPORTED_ENTITY_TYPES);
 	}
 
+	@Override
+	public void initialize(Properties properties) {
+		super.initialize(properties);
+		serviceNames.clear();
+	}
+
 	@Override
 	public RangerServiceResource buildResource(final RangerAtlasEntity entity) throws Exception {
+		return buildResource(entity, null);
+	}
+
+	/*
+	 * Maps a batch of entities in one pass. Entities indexing the same index
+	 * share one immutable resource map, and service names are resolved once
+	 * per cluster. Entities that cannot be mapped are logged and skipped.
+	 */
+	public List<RangerServiceResource> buildResources(final Collection<RangerAtlasEntity> entities) {
+		List<RangerServiceResource> ret = new ArrayList<RangerServiceResource>(entities.size());
+		Map<String, Map<String, RangerPolicyResource>> elementsByIndex = new HashMap<String, Map<String, RangerPolicyResource>>();
+
+		for (RangerAtlasEntity entity : entities) {
+			try {
+				ret.add(buildResource(entity, elementsByIndex));
+			} catch (Exception e) {
+				LOG.warn("Could not map entity " + entity.getGuid() + " of type " + entity.getTypeName() + ": " + e.getMessage());
+			}
+		}
+
+		return ret;
+	}
+
+	private RangerServiceResource buildResource(final RangerAtlasEntity entity,
+			Map<String, Map<String, RangerPolicyResource>> elementsByIndex) throws Exception {
 		String entityGuid    = entity.getGuid() != null ? entity.getGuid() : null;
 		String qualifiedName = (String)entity.getAttributes().get(AtlasResourceMapper.ENTITY_ATTRIBUTE_QUALIFIED_NAME);
+		String pattern       = (String)entity.getAttributes().get(ENTITY_ATTRIBUTE_PATTERN);
 
-		return getServiceResource(entityGuid, qualifiedName);
+		return getServiceResource(entityGuid, qualifiedName, pattern, elementsByIndex);
 	}
 
-	private RangerServiceResource getServiceResource(String entityGuid, String qualifiedName) throws Exception {
-		String index = getResourceNameFromQualifiedName(qualifiedName);
+	/*
+	 * An es_index_pattern entity, or any entity with a 'pattern' attribute,
+	 * maps to one wildcard index resource (e.g. logs-app-*) instead of one
+	 * resource per concrete index, so rolling indices over does not grow the
+	 * tag store. The pattern defaults to the index part of qualifiedName.
+	 */
+	private RangerServiceResource getServiceResource(String entityGuid, String qualifiedName, String pattern,
+			Map<String, Map<String, RangerPolicyResource>> elementsByIndex) throws Exception {
+		// qualifiedName is <index or pattern>@<cluster>, parsed once for both parts
+		int    delimiterIdx = StringUtils.isBlank(qualifiedName) ? -1 : qualifiedName.lastIndexOf(QUALIFIED_NAME_CLUSTER_DELIMITER);
+		String index        = StringUtils.isNotBlank(pattern) ? pattern.trim()
+				: delimiterIdx == -1 ? qualifiedName : qualifiedName.substring(0, delimiterIdx);
 
 		if(StringUtils.isEmpty(index)) {
 			throwExceptionWithMessage("index not found in attribute '" + ENTITY_ATTRIBUTE_QUALIFIED_NAME +  "'");
 		}
 
-		String clusterName = getClusterNameFromQualifiedName(qualifiedName);
+		if(StringUtils.containsAny(index, INVALID_PATTERN_CHARS)) {
+			throwExceptionWithMessage("invalid index or pattern '" + index + "' in entity " + entityGuid);
+		}
+
+		String clusterName = delimiterIdx == -1 ? null : qualifiedName.substring(delimiterIdx + 1);
 
 		if(StringUtils.isEmpty(clusterName)) {
 			clusterName = defaultClusterName;
@@ -68,15 +133,32 @@ public class AtlasESResourceMapper extends AtlasResourceMapper {
 			throwExceptionWithMessage("attribute '" + ENTITY_ATTRIBUTE_QUALIFIED_NAME +  "' not found in entity");
 		}
 
+		Map<String, RangerPolicyResource> elements = elementsByIndex != null ? elementsByIndex.get(index) : null;
+
+		if (elements == null) {
+			Boolean isExcludes  = Boolean.FALSE;
+			Boolean isRecursive = Boolean.FALSE;
 
-		Map<String, RangerPolicyResource> elements = new HashMap<String, RangerPolicy.RangerPolicyResource>();
-		Boolean isExcludes  = Boolean.FALSE;
-		Boolean isRecursive = Boolean.FALSE;
+			elements = Collections.singletonMap(RANGER_TYPE_ES_INDEX, new RangerPolicyResource(index, isExcludes, isRecursive));
 
-		elements.put(RANGER_TYPE_ES_INDEX, new RangerPolicyResource(index, isExcludes, isRecursive));
+			if (elementsByIndex != null) {
+				elementsByIndex.put(index, elements);
+			}
+		}
 
-		String  serviceName = getRangerServiceName(clusterName);
+		String  serviceName = getServiceName(clusterName);
 
 		return new RangerServiceResource(entityGuid, serviceName, elements);
 	}
+
+	private String getServiceName(String clusterName) {
+		String serviceName = serviceNames.get(clusterName);
+
+		if (serviceName == null) {
+			serviceName = getRangerServiceName(clusterName);
+			serviceNames.put(clusterName.intern(), serviceName.intern());
+		}
+
+		return serviceName;
+	}
 }
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2020 ThalesGroup
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.guavus.tagsync.source.atlas;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.ranger.plugin.model.RangerServiceResource;
+import org.apache.ranger.tagsync.source.atlas.AtlasResourceMapper;
+import org.apache.ranger.tagsync.source.atlasrest.RangerAtlasEntity;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * Measures tag sync throughput of AtlasESResourceMapper without Atlas or Ranger.
+
+ * Entities are either generated in memory, or served page by page from a local
+ * stand-in for the Atlas basic search REST endpoint and parsed from JSON the
+ * way a tag source would. Each iteration reports entities per second, bytes
+ * allocated by the benchmark thread and the peak heap usage. It lives in the
+ * test sources, so it is compiled but not packaged with the mapper.
+
+ * Usage: java -cp target/test-classes:<tagsync classpath> com.guavus.tagsync.source.atlas.AtlasESResourceMapperBenchmark
+ *          [--entities=100000] [--clusters=4] [--classifications=3] [--iterations=5]
+ *          [--mode=batch|single] [--source=generated|atlas] [--pageSize=10000]
+ */
+
+public class AtlasESResourceMapperBenchmark {
+	private static final String ATLAS_SEARCH_PATH = "/api/atlas/v2/search/basic";
+	private static final String[] CLASSIFICATIONS = { "PII", "SENSITIVE", "FINANCE", "GDPR", "INTERNAL", "PUBLIC" };
+
+	private final int    entityCount;
+	private final int    clusterCount;
+	private final int    classificationsPerEntity;
+	private final int    iterations;
+	private final String mode;
+	private final String source;
+	private final int    pageSize;
+
+	private AtlasESResourceMapperBenchmark(Map<String, String> args) {
+		this.entityCount              = Integer.parseInt(getArg(args, "entities", "100000"));
+		this.clusterCount             = Integer.parseInt(getArg(args, "clusters", "4"));
+		this.classificationsPerEntity = Integer.parseInt(getArg(args, "classifications", "3"));
+		this.iterations               = Integer.parseInt(getArg(args, "iterations", "5"));
+		this.mode                     = getArg(args, "mode", "batch");
+		this.source                   = getArg(args, "source", "generated");
+		this.pageSize                 = Integer.parseInt(getArg(args, "pageSize", "10000"));
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> parsedArgs = new HashMap<String, String>();
+
+		for (String arg : args) {
+			if (arg.startsWith("--") && arg.indexOf('=') > 2) {
+				parsedArgs.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+			} else {
+				System.err.println("Ignoring argument " + arg + ", expected --name=value");
+			}
+		}
+
+		new AtlasESResourceMapperBenchmark(parsedArgs).run();
+	}
+
+	private void run() throws Exception {
+		AtlasESResourceMapper mapper     = new AtlasESResourceMapper();
+		Properties            properties = new Properties();
+
+		properties.setProperty(AtlasResourceMapper.TAGSYNC_DEFAULT_CLUSTER_NAME, "cluster0");
+		mapper.initialize(properties);
+
+		List<Map<String, Object>> generated = generate();
+		HttpServer                server    = "atlas".equals(source) ? startAtlasStandIn(generated) : null;
+
+		try {
+			System.out.println("entities=" + entityCount + ", clusters=" + clusterCount + ", classifications=" + classificationsPerEntity
+					+ ", mode=" + mode + ", source=" + source);
+			System.out.println(String.format("%-10s %10s %14s %14s %14s %10s", "iteration", "ms", "entities/sec", "alloc MB", "peak heap MB", "resources"));
+
+			for (int i = 1; i <= iterations; i++) {
+				resetPeakHeap();
+
+				long allocStart = allocatedBytes();
+				long start      = System.nanoTime();
+
+				List<Map<String, Object>> rawEntities = server != null ? fetchFromAtlas(server) : generated;
+				List<RangerAtlasEntity>   entities    = new ArrayList<RangerAtlasEntity>(rawEntities.size());
+
+				for (Map<String, Object> raw : rawEntities) {
+					entities.add(toEntity(raw));
+				}
+
+				int resourceCount = map(mapper, entities);
+
+				long   elapsedNs = System.nanoTime() - start;
+				long   allocated = allocatedBytes() - allocStart;
+				double perSec    = entities.size() / (elapsedNs / 1e9);
+
+				System.out.println(String.format("%-10d %10d %14.0f %14.1f %14.1f %10d", i, elapsedNs / 1000000, perSec,
+						allocated / 1048576.0, peakHeapBytes() / 1048576.0, resourceCount));
+			}
+		} finally {
+			if (server != null) {
+				server.stop(0);
+			}
+		}
+	}
+
+	private int map(AtlasESResourceMapper mapper, List<RangerAtlasEntity> entities) throws Exception {
+		if ("single".equals(mode)) {
+			int count = 0;
+
+			for (RangerAtlasEntity entity : entities) {
+				RangerServiceResource resource = mapper.buildResource(entity);
+
+				if (resource != null) {
+					count++;
+				}
+			}
+
+			return count;
+		} else {
+			return mapper.buildResources(entities).size();
+		}
+	}
+
+	private List<Map<String, Object>> generate() {
+		List<Map<String, Object>> ret = new ArrayList<Map<String, Object>>(entityCount);
+
+		for (int i = 0; i < entityCount; i++) {
+			Map<String, Object> attributes = new HashMap<String, Object>();
+			Map<String, Object> entity     = new HashMap<String, Object>();
+			List<String>        names      = new ArrayList<String>();
+
+			// daily rollover style names spread over the clusters
+			attributes.put(AtlasESResourceMapper.ENTITY_ATTRIBUTE_QUALIFIED_NAME,
+					"logs-app" + (i % 500) + "-" + (i / 500) + "@cluster" + (i % clusterCount));
+
+			for (int c = 0; c < classificationsPerEntity; c++) {
+				names.add(CLASSIFICATIONS[(i + c) % CLASSIFICATIONS.length]);
+			}
+
+			entity.put("typeName", AtlasESResourceMapper.ENTITY_TYPE_ES_INDEX);
+			entity.put("guid", "guid-" + i);
+			entity.put("attributes", attributes);
+			entity.put("classificationNames", names);
+			ret.add(entity);
+		}
+
+		return ret;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static RangerAtlasEntity toEntity(Map<String, Object> raw) {
+		return new RangerAtlasEntity((String) raw.get("typeName"), (String) raw.get("guid"), (Map<String, Object>) raw.get("attributes"));
+	}
+
+	private HttpServer startAtlasStandIn(final List<Map<String, Object>> entities) throws IOException {
+		final Gson       gson   = new Gson();
+		final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+
+		server.createContext(ATLAS_SEARCH_PATH, new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				Map<String, String> query  = parseQuery(exchange.getRequestURI());
+				int                 offset = Integer.parseInt(getArg(query, "offset", "0"));
+				int                 limit  = Integer.parseInt(getArg(query, "limit", String.valueOf(pageSize)));
+				int                 end    = Math.min(entities.size(), offset + limit);
+
+				Map<String, Object> result = new HashMap<String, Object>();
+				// copied, Gson serializes concrete list classes only
+				result.put("entities", new ArrayList<Map<String, Object>>(entities.subList(Math.min(offset, end), end)));
+
+				byte[] body = gson.toJson(result).getBytes(StandardCharsets.UTF_8);
+
+				exchange.getResponseHeaders().set("Content-Type", "application/json");
+				exchange.sendResponseHeaders(200, body.length);
+
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			}
+		});
+		server.start();
+
+		return server;
+	}
+
+	private List<Map<String, Object>> fetchFromAtlas(HttpServer server) throws IOException {
+		List<Map<String, Object>> ret  = new ArrayList<Map<String, Object>>();
+		Gson                      gson = new Gson();
+
+		for (int offset = 0; ; offset += pageSize) {
+			URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + ATLAS_SEARCH_PATH
+					+ "?typeName=" + AtlasESResourceMapper.ENTITY_TYPE_ES_INDEX + "&offset=" + offset + "&limit=" + pageSize);
+			HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+
+			try (Reader reader = new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8)) {
+				Map<String, List<Map<String, Object>>> page = gson.fromJson(reader,
+						new TypeToken<Map<String, List<Map<String, Object>>>>() {}.getType());
+				List<Map<String, Object>> entities = page.get("entities");
+
+				if (entities == null || entities.isEmpty()) {
+					return ret;
+				}
+
+				ret.addAll(entities);
+			} finally {
+				connection.disconnect();
+			}
+		}
+	}
+
+	private static Map<String, String> parseQuery(URI uri) {
+		Map<String, String> ret = new HashMap<String, String>();
+
+		if (uri.getRawQuery() != null) {
+			for (String param : uri.getRawQuery().split("&")) {
+				int idx = param.indexOf('=');
+
+				if (idx > 0) {
+					ret.put(param.substring(0, idx), param.substring(idx + 1));
+				}
+			}
+		}
+
+		return ret;
+	}
+
+	private static String getArg(Map<String, String> args, String name, String defaultValue) {
+		String value = args.get(name);
+
+		return value != null ? value : defaultValue;
+	}
+
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+		if (threadBean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+
+		return 0;
+	}
+
+	private static void resetPeakHeap() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	private static long peakHeapBytes() {
+		long ret = 0;
+
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+				ret += pool.getPeakUsage().getUsed();
+			}
+		}
+
+		return ret;
+	}
+}